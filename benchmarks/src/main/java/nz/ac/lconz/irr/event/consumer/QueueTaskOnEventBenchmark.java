@@ -0,0 +1,82 @@
+package nz.ac.lconz.irr.event.consumer;
+
+import nz.ac.lconz.irr.event.util.BenchmarkEnvironment;
+import nz.ac.lconz.irr.event.util.StandIns;
+import org.dspace.core.Context;
+import org.dspace.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the curation-queueing consumers scale with the number of events in one commit: the cost of dispatching all
+ * events of a commit to the consumer (consume for each event, then end), and the cost of the applicability check alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueueTaskOnEventBenchmark {
+	@Param({"10", "100", "1000", "10000", "100000"})
+	int events;
+
+	// number of distinct items whose files change in one commit
+	@Param({"1", "1000"})
+	int items;
+
+	private Context ctx;
+	private List<Event> bitstreamEvents;
+	private List<Event> installEvents;
+	private QueueTaskOnBitstreamChange bitstreamConsumer;
+	private QueueTaskOnInstall installConsumer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkEnvironment.setUp();
+		ctx = StandIns.context();
+		bitstreamEvents = StandIns.bitstreamChangeEvents(events, items);
+		installEvents = StandIns.installEvents(Math.min(events, items));
+		bitstreamConsumer = new QueueTaskOnBitstreamChange();
+		bitstreamConsumer.initialize();
+		installConsumer = new QueueTaskOnInstall();
+		installConsumer.initialize();
+	}
+
+	@Benchmark
+	public void bitstreamChangeCommit() throws Exception {
+		for (Event event : bitstreamEvents) {
+			bitstreamConsumer.consume(ctx, event);
+		}
+		bitstreamConsumer.end(ctx);
+	}
+
+	@Benchmark
+	public void bitstreamChangeIsApplicable(Blackhole blackhole) throws Exception {
+		for (Event event : bitstreamEvents) {
+			blackhole.consume(bitstreamConsumer.accepts(ctx, event));
+		}
+	}
+
+	@Benchmark
+	public void installCommit() throws Exception {
+		for (Event event : installEvents) {
+			installConsumer.consume(ctx, event);
+		}
+		installConsumer.end(ctx);
+	}
+}
@@ -0,0 +1,76 @@
+package nz.ac.lconz.irr.event.hook;
+
+import nz.ac.lconz.irr.event.util.BenchmarkEnvironment;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.StandIns;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the embargo-lifted hook (provenance, notification, curation) scales with the number of items lifted in one run,
+ * with one e-mail per item or with a digest. The notification group is a stand-in whose members are put into the
+ * recipient cache up front, so the recipient lookup, digest and dispatch paths all run without a database. Mail sending
+ * is disabled in the benchmark configuration, so this measures building and dispatching the notifications, not talking
+ * to an SMTP server. Items have no handle, so no handle lookups are done.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EmbargoHooksBenchmark {
+	private static final int DISTINCT_ITEMS = 1000;
+	private static final int NOTIFY_GROUP_ID = 53;
+
+	@Param({"10", "100", "1000", "10000", "100000"})
+	int events;
+
+	@Param({"false", "true"})
+	boolean digest;
+
+	private Context ctx;
+	private List<Item> items;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkEnvironment.setUp();
+		Properties config = BenchmarkEnvironment.defaultModuleConfig();
+		config.setProperty("embargo.notify.digest.notify_embargo_lift", String.valueOf(digest));
+		config.setProperty("embargo.notify.groupid", String.valueOf(NOTIFY_GROUP_ID));
+		// keep the stand-in group's members cached for the whole trial
+		config.setProperty("cache.recipients.ttl", String.valueOf(Integer.MAX_VALUE / 1000));
+		EventConsumerConfig.install(config);
+		StandIns.group(NOTIFY_GROUP_ID, "repository-admin@localhost", "embargo-officer@localhost");
+		ctx = StandIns.context();
+		items = new ArrayList<Item>();
+		for (int i = 0; i < Math.min(events, DISTINCT_ITEMS); i++) {
+			items.add(StandIns.item(i, false));
+		}
+	}
+
+	@Benchmark
+	public void embargoLifted() {
+		for (int i = 0; i < events; i++) {
+			EmbargoHooks.atEmbargoLifted(ctx, items.get(i % items.size()));
+		}
+		EmbargoDigest.flush();
+	}
+}
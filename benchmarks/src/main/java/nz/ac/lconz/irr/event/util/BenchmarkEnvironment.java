@@ -0,0 +1,77 @@
+package nz.ac.lconz.irr.event.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Minimal DSpace installation directory for the benchmarks: a dspace.cfg, an lconz-event.cfg and the e-mail templates
+ * used by the notification paths. Mail sending is disabled, and the curation task queue is replaced by a
+ * {@link CountingTaskQueue}, so that no database, SMTP server or task queue files are needed.
+ */
+public class BenchmarkEnvironment {
+	private static File dspaceDir;
+
+	/**
+	 * Create the installation directory (once per JVM) and point DSpace's configuration at it.
+	 * @return the installation directory
+	 * @throws IOException if the files cannot be written
+	 */
+	public static synchronized File setUp() throws IOException {
+		if (dspaceDir != null) {
+			return dspaceDir;
+		}
+		File dir = Files.createTempDirectory("lconz-event-benchmark").toFile();
+		File config = new File(dir, "config");
+		new File(config, "modules").mkdirs();
+		new File(config, "emails").mkdirs();
+		new File(dir, "var").mkdirs();
+
+		File dspaceCfg = new File(config, "dspace.cfg");
+		write(dspaceCfg, "dspace.dir = " + dir.getAbsolutePath() + "\n"
+				+ "dspace.url = http://localhost:8080/xmlui\n"
+				+ "handle.prefix = 123456789\n"
+				+ "default.language = en\n"
+				+ "mail.server = localhost\n"
+				+ "mail.server.disabled = true\n"
+				+ "mail.from.address = dspace@localhost\n"
+				+ "plugin.single.org.dspace.curate.TaskQueue = " + CountingTaskQueue.class.getName() + "\n");
+		write(new File(config, "modules/lconz-event.cfg"), toString(defaultModuleConfig()));
+		write(new File(config, "emails/notify_embargo_lift"), "Subject: Embargo lifted: {1}\n\n{0}\n{1}\n{2}\n{3} ({4})\n{5}\n");
+		write(new File(config, "emails/notify_embargo_digest"), "Subject: {0}: {1} items\n\n{2}\n");
+
+		System.setProperty("dspace.configuration", dspaceCfg.getAbsolutePath());
+		dspaceDir = dir;
+		return dir;
+	}
+
+	/**
+	 * @return the lconz-event configuration used by the benchmarks, for benchmarks that want to change some values
+	 */
+	public static Properties defaultModuleConfig() {
+		Properties properties = new Properties();
+		properties.setProperty("queue.install.tasks", "addcover");
+		properties.setProperty("queue.bitstreamchange.tasks", "annotatemime, thumbnail");
+		properties.setProperty("queue.embargo.lifted.tasks", "annotatemime");
+		properties.setProperty("mail.dispatch.async", "false");
+		return properties;
+	}
+
+	private static String toString(Properties properties) {
+		StringBuilder result = new StringBuilder();
+		for (String key : properties.stringPropertyNames()) {
+			result.append(key).append(" = ").append(properties.getProperty(key)).append("\n");
+		}
+		return result.toString();
+	}
+
+	private static void write(File file, String content) throws IOException {
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+			writer.write(content);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the curation task queue that only counts what would have been written.
+ */
+public class CountingTaskQueue implements TaskQueue {
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong entries = new AtomicLong();
+
+	public String[] queueNames() {
+		return new String[0];
+	}
+
+	public void enqueue(String queueName, TaskQueueEntry entry) {
+		writes.incrementAndGet();
+		entries.incrementAndGet();
+	}
+
+	public void enqueue(String queueName, Set<TaskQueueEntry> entrySet) {
+		writes.incrementAndGet();
+		entries.addAndGet(entrySet.size());
+	}
+
+	public Set<TaskQueueEntry> dequeue(String queueName, long ticket) {
+		return Collections.emptySet();
+	}
+
+	public void release(String queueName, long ticket, boolean remove) {
+	}
+
+	public static long getWrites() {
+		return writes.get();
+	}
+
+	public static long getEntries() {
+		return entries.get();
+	}
+}
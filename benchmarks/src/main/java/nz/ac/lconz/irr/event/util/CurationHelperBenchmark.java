@@ -0,0 +1,69 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How queueing items for curation scales with the number of items added in one commit, including repeats of the same
+ * item. The task queue is a {@link CountingTaskQueue}, so this measures the helper's own work only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CurationHelperBenchmark {
+	@Param({"10", "100", "1000", "10000", "100000"})
+	int events;
+
+	// number of distinct items among the queued ones
+	@Param({"1", "1000"})
+	int items;
+
+	private Context ctx;
+	private List<Item> toQueue;
+	private CurationHelper helper;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		BenchmarkEnvironment.setUp();
+		ctx = StandIns.context();
+		List<Item> distinct = new ArrayList<Item>();
+		for (int i = 0; i < Math.min(events, items); i++) {
+			distinct.add(StandIns.item(i, true));
+		}
+		toQueue = new ArrayList<Item>(events);
+		for (int i = 0; i < events; i++) {
+			toQueue.add(distinct.get(i % distinct.size()));
+		}
+		helper = new CurationHelper();
+		helper.initTaskNames("queue.bitstreamchange.tasks");
+		helper.initQueueName("queue.bitstreamchange.name");
+	}
+
+	@Benchmark
+	public long queueForCuration() throws Exception {
+		for (Item item : toQueue) {
+			helper.addToQueue(item);
+		}
+		helper.queueForCuration(ctx);
+		return CountingTaskQueue.getEntries();
+	}
+}
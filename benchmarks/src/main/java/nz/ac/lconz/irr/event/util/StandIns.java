@@ -0,0 +1,190 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.content.Bundle;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.event.Event;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Lightweight stand-ins for the DSpace objects the consumers work with. Contexts, items and bundles are stub-only
+ * mocks (no database, no recorded invocations); events are real events whose subject and object lookups return the
+ * stand-ins instead of going to the database.
+ */
+public class StandIns {
+	// items handed out so far, so that lookups by ID through the context's object cache find them
+	private static final Map<Integer, Item> items = new ConcurrentHashMap<Integer, Item>();
+
+	/**
+	 * @return a context that isn't connected to a database
+	 */
+	public static Context context() {
+		Context ctx = mock(Context.class, withSettings().stubOnly());
+		when(ctx.getCurrentLocale()).thenReturn(Locale.ENGLISH);
+		when(ctx.fromCache(eq(Item.class), anyInt())).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				return items.get(invocation.<Integer>getArgument(1));
+			}
+		});
+		return ctx;
+	}
+
+	/**
+	 * Make a group with the given members known to the notification code, as if its members had been looked up in the
+	 * database (see {@link RecipientCache}). Benchmarks using this should set cache.recipients.ttl to outlast the trial.
+	 * @param groupId the group ID
+	 * @param emails the e-mail addresses of the members (including members of subgroups)
+	 */
+	public static void group(int groupId, String... emails) {
+		RecipientCache.put(groupId, true, Arrays.asList(emails));
+		RecipientCache.put(groupId, false, Arrays.asList(emails));
+	}
+
+	/**
+	 * @param id the item ID
+	 * @param withHandle whether the item should have a handle
+	 * @return an archived item with a title and an author
+	 */
+	public static Item item(int id, boolean withHandle) {
+		Item item = mock(Item.class, withSettings().stubOnly());
+		when(item.getID()).thenReturn(id);
+		when(item.getType()).thenReturn(Constants.ITEM);
+		when(item.getHandle()).thenReturn(withHandle ? "123456789/" + id : null);
+		when(item.isArchived()).thenReturn(true);
+		when(item.getMetadata(eq("dc"), eq("title"), (String) isNull(), anyString())).thenReturn(values("Title of item " + id));
+		when(item.getMetadata(eq("dc"), eq("contributor"), eq("author"), anyString())).thenReturn(values("Author, An"));
+		when(item.getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY)).thenReturn(new Metadatum[] {
+				field("dc", "title", null, "Title of item " + id), field("dc", "contributor", "author", "Author, An") });
+		items.put(id, item);
+		return item;
+	}
+
+	/**
+	 * @param id the bundle ID
+	 * @param name the bundle name
+	 * @param owner the item the bundle belongs to
+	 * @return a bundle belonging to the item
+	 * @throws SQLException never
+	 */
+	public static Bundle bundle(int id, String name, Item owner) throws SQLException {
+		Bundle bundle = mock(Bundle.class, withSettings().stubOnly());
+		when(bundle.getID()).thenReturn(id);
+		when(bundle.getType()).thenReturn(Constants.BUNDLE);
+		when(bundle.getName()).thenReturn(name);
+		when(bundle.getParentObject()).thenReturn(owner);
+		return bundle;
+	}
+
+	/**
+	 * Events as produced by changing the files of the given number of items: per item, a bitstream is added to and
+	 * removed from its ORIGINAL bundle, the bitstream is modified, and the THUMBNAIL bundle is regenerated.
+	 * @param count the total number of events
+	 * @param items the number of distinct items to spread the events across
+	 * @return the events
+	 * @throws SQLException never
+	 */
+	public static List<Event> bitstreamChangeEvents(int count, int items) throws SQLException {
+		List<Event> events = new ArrayList<Event>(count);
+		List<Bundle[]> bundles = new ArrayList<Bundle[]>();
+		for (int i = 0; i < Math.min(count, items); i++) {
+			Item item = item(i, true);
+			bundles.add(new Bundle[] { bundle(2 * i, "ORIGINAL", item), bundle(2 * i + 1, "THUMBNAIL", item) });
+		}
+		for (int i = 0; i < count; i++) {
+			Bundle[] itemBundles = bundles.get((i / 4) % bundles.size());
+			switch (i % 4) {
+				case 0:
+					events.add(new StandInEvent(Event.ADD, itemBundles[0], Constants.BITSTREAM, i, null));
+					break;
+				case 1:
+					events.add(new StandInEvent(Event.MODIFY, Constants.BITSTREAM, i - 1, null, Constants.BITSTREAM, -1, null));
+					break;
+				case 2:
+					events.add(new StandInEvent(Event.ADD, itemBundles[1], Constants.BITSTREAM, i, null));
+					break;
+				default:
+					events.add(new StandInEvent(Event.REMOVE, itemBundles[0], Constants.BITSTREAM, i - 3, null));
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * @param count the number of events
+	 * @return Item+Install events for distinct items
+	 */
+	public static List<Event> installEvents(int count) {
+		List<Event> events = new ArrayList<Event>(count);
+		for (int i = 0; i < count; i++) {
+			Item item = item(i, true);
+			events.add(new StandInEvent(Event.INSTALL, item, -1, -1, null));
+		}
+		return events;
+	}
+
+	public static Metadatum[] values(String... values) {
+		Metadatum[] result = new Metadatum[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = new Metadatum();
+			result[i].value = values[i];
+		}
+		return result;
+	}
+
+	public static Metadatum field(String schema, String element, String qualifier, String value) {
+		Metadatum result = new Metadatum();
+		result.schema = schema;
+		result.element = element;
+		result.qualifier = qualifier;
+		result.value = value;
+		return result;
+	}
+
+	/**
+	 * Event whose subject and object are given up front rather than looked up in the database.
+	 */
+	public static class StandInEvent extends Event {
+		private final DSpaceObject subject;
+		private final DSpaceObject object;
+
+		StandInEvent(int eventType, DSpaceObject subject, int objectType, int objectID, DSpaceObject object) {
+			this(eventType, subject.getType(), subject.getID(), subject, objectType, objectID, object);
+		}
+
+		StandInEvent(int eventType, int subjectType, int subjectID, DSpaceObject subject, int objectType, int objectID, DSpaceObject object) {
+			super(eventType, subjectType, subjectID, objectType, objectID, null);
+			this.subject = subject;
+			this.object = object;
+		}
+
+		@Override
+		public DSpaceObject getSubject(Context context) {
+			return subject;
+		}
+
+		@Override
+		public DSpaceObject getObject(Context context) {
+			return object;
+		}
+	}
+}
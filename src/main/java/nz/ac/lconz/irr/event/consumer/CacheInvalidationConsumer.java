@@ -0,0 +1,41 @@
+package nz.ac.lconz.irr.event.consumer;
+
+import nz.ac.lconz.irr.event.util.AnonymousReadCache;
+import nz.ac.lconz.irr.event.util.RecipientCache;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.event.Consumer;
+import org.dspace.event.Event;
+
+/**
+ * Event consumer that clears the caches used by the other LCoNZ consumers and hooks when the data they cache changes.
+ *
+ * Changes to groups (including membership) and e-people clear the {@link RecipientCache}; changes to a collection
+ * remove it from the {@link AnonymousReadCache}.
+ */
+public class CacheInvalidationConsumer implements Consumer {
+	private boolean recipientsChanged = false;
+
+	public void initialize() throws Exception {
+	}
+
+	public void consume(Context ctx, Event event) throws Exception {
+		int subjectType = event.getSubjectType();
+		if (subjectType == Constants.GROUP || subjectType == Constants.EPERSON) {
+			recipientsChanged = true;
+		} else if (subjectType == Constants.COLLECTION && event.getEventType() != Event.ADD && event.getEventType() != Event.REMOVE) {
+			// adding/removing items doesn't change the collection's policies
+			AnonymousReadCache.invalidate(event.getSubjectID());
+		}
+	}
+
+	public void end(Context ctx) throws Exception {
+		if (recipientsChanged) {
+			RecipientCache.clear();
+			recipientsChanged = false;
+		}
+	}
+
+	public void finish(Context ctx) throws Exception {
+	}
+}
@@ -0,0 +1,210 @@
+package nz.ac.lconz.irr.event.consumer;
+
+import nz.ac.lconz.irr.event.metrics.ConsumerMetrics;
+import nz.ac.lconz.irr.event.metrics.ConsumerStats;
+import nz.ac.lconz.irr.event.util.CurationBatch;
+import nz.ac.lconz.irr.event.util.CurationHelper;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.EventFilter;
+import nz.ac.lconz.irr.event.util.ItemResolutionCache;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
+import org.apache.log4j.Logger;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.event.Consumer;
+import org.dspace.event.Event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Event consumer that runs several of the LCoNZ consumers ("rules") in a single pass over the events of a commit,
+ * instead of each of them being registered with the DSpace event dispatcher and handed every event in turn.
+ *
+ * The rules are listed in <code>composite.rules</code> (lconz-event.cfg, comma separated). Each rule name is either one
+ * of the built-in names below or has its consumer class given in <code>composite.rule.[name].class</code>:
+ * <ul>
+ *     <li>install_curate: {@link QueueTaskOnInstall}</li>
+ *     <li>bitstreamchange_curate: {@link QueueTaskOnBitstreamChange}</li>
+ *     <li>item_moved_public_coll: {@link ItemMovedToPublicCollection}</li>
+ *     <li>author_notify_archive: {@link NotifyRealAuthorOfArchive}</li>
+ *     <li>duplicate_notify: {@link NotifyAboutDuplicateItem}</li>
+ * </ul>
+ * When the consumer is initialised, the event filters of the rules (see {@link FilteredConsumer}) are compiled into a
+ * table that maps each combination of subject type and event type to the rules that act on it; rules that don't
+ * declare a filter are given every event. Each event is looked up in the table once and handed only to the matching
+ * rules. The subject of an event on an item, bundle or bitstream is resolved once (see {@link ItemResolutionCache}) and
+ * shared by all rules until the end of the commit, when it is cleared once (the built-in rules don't clear it
+ * themselves while running in the composite, see {@link CompositeRule}). Curation tasks of all rules go into a single
+ * {@link CurationBatch} that is queued once in end().
+ *
+ * As with separately registered consumers, a rule that fails is logged and doesn't stop the other rules. The list of
+ * rules is read when the consumer is initialised; the rules' own settings are picked up as usual.
+ */
+public class CompositeConsumer implements Consumer {
+	private static final Logger log = Logger.getLogger(CompositeConsumer.class);
+
+	private static final String RULES = "composite.rules";
+	private static final Map<String, Class<? extends Consumer>> BUILT_IN_RULES = new HashMap<String, Class<? extends Consumer>>();
+	static {
+		BUILT_IN_RULES.put("install_curate", QueueTaskOnInstall.class);
+		BUILT_IN_RULES.put("bitstreamchange_curate", QueueTaskOnBitstreamChange.class);
+		BUILT_IN_RULES.put("item_moved_public_coll", ItemMovedToPublicCollection.class);
+		BUILT_IN_RULES.put("author_notify_archive", NotifyRealAuthorOfArchive.class);
+		BUILT_IN_RULES.put("duplicate_notify", NotifyAboutDuplicateItem.class);
+	}
+
+	// DSpace object types and event types are both below 32 (event types are single bits)
+	private static final int SUBJECT_TYPES = 32;
+	private static final int EVENT_TYPES = 32;
+	private static final Rule[] NO_RULES = new Rule[0];
+
+	private final List<Rule> rules = new ArrayList<Rule>();
+	// subject type * EVENT_TYPES + bit number of event type -> rules acting on that combination
+	private final Rule[][] dispatch = new Rule[SUBJECT_TYPES * EVENT_TYPES][];
+
+	private final ConsumerStats stats = ConsumerMetrics.get(getClass().getSimpleName());
+
+	public void initialize() throws Exception {
+		EventConsumerConfig config = EventConsumerConfig.current();
+		for (String name : config.getList(RULES)) {
+			Consumer consumer = createConsumer(config, name);
+			if (consumer == null) {
+				continue;
+			}
+			try {
+				consumer.initialize();
+				EventFilter filter = new EventFilter(consumer instanceof FilteredConsumer ? ((FilteredConsumer) consumer).getEventFilter() : "All+All");
+				rules.add(new Rule(name, consumer, filter));
+				log.info("Running rule " + name + " for events " + filter);
+			} catch (Exception e) {
+				log.error("Cannot initialise rule " + name + ", leaving it out", e);
+			}
+		}
+		if (rules.isEmpty()) {
+			log.error("CompositeConsumer: no rules configured (" + RULES + "), nothing to do.");
+		}
+
+		for (int subjectType = 0; subjectType < SUBJECT_TYPES; subjectType++) {
+			for (int eventBit = 0; eventBit < EVENT_TYPES; eventBit++) {
+				List<Rule> matching = new ArrayList<Rule>();
+				for (Rule rule : rules) {
+					if (rule.filter.matches(subjectType, 1 << eventBit)) {
+						matching.add(rule);
+					}
+				}
+				dispatch[subjectType * EVENT_TYPES + eventBit] = matching.isEmpty() ? NO_RULES : matching.toArray(new Rule[matching.size()]);
+			}
+		}
+	}
+
+	private Consumer createConsumer(EventConsumerConfig config, String name) {
+		String className = config.getProperty("composite.rule." + name + ".class");
+		try {
+			if (className != null) {
+				return (Consumer) Class.forName(className).newInstance();
+			}
+			Class<? extends Consumer> builtIn = BUILT_IN_RULES.get(name);
+			if (builtIn != null) {
+				return builtIn.newInstance();
+			}
+			log.error("Unknown rule " + name + ", set composite.rule." + name + ".class to the consumer class to use");
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			log.error("Cannot create consumer for rule " + name, e);
+		}
+		return null;
+	}
+
+	public void consume(Context ctx, Event event) throws Exception {
+		long start = stats.enter();
+		try {
+			stats.eventSeen();
+			Rule[] matching = findRules(event);
+			if (matching.length == 0) {
+				stats.eventFiltered();
+				return;
+			}
+			int subjectType = event.getSubjectType();
+			if (subjectType == Constants.ITEM || subjectType == Constants.BUNDLE || subjectType == Constants.BITSTREAM) {
+				// resolve the subject once up front; the rules find it in the memo
+				ItemResolutionCache.resolve(ctx, event);
+			}
+			for (Rule rule : matching) {
+				try {
+					rule.consumer.consume(ctx, event);
+				} catch (Exception e) {
+					stats.error();
+					log.error("Rule " + rule.name + " failed for event " + event, e);
+				}
+			}
+		} finally {
+			stats.exitConsume(start);
+		}
+	}
+
+	private Rule[] findRules(Event event) {
+		int subjectType = event.getSubjectType();
+		int eventType = event.getEventType();
+		if (subjectType < 0 || subjectType >= SUBJECT_TYPES || Integer.bitCount(eventType) != 1) {
+			return NO_RULES;
+		}
+		return dispatch[subjectType * EVENT_TYPES + Integer.numberOfTrailingZeros(eventType)];
+	}
+
+	public void end(Context ctx) throws Exception {
+		long start = stats.enter();
+		try {
+			CurationBatch batch = CurationHelper.newBatch();
+			for (Rule rule : rules) {
+				try {
+					if (rule.consumer instanceof QueueTaskOnEvent) {
+						((QueueTaskOnEvent) rule.consumer).end(ctx, batch);
+					} else if (rule.consumer instanceof CompositeRule) {
+						((CompositeRule) rule.consumer).endRule(ctx);
+					} else {
+						rule.consumer.end(ctx);
+					}
+				} catch (Exception e) {
+					stats.error();
+					log.error("Rule " + rule.name + " failed at the end of the commit", e);
+				}
+			}
+			CurationHelper.submit(ctx, batch);
+		} catch (Exception e) {
+			stats.error();
+			throw e;
+		} finally {
+			// the built-in rules leave the shared memos alone (see CompositeRule), so that none of them is cleared
+			// while later rules still need it
+			MetadataProjection.clear(ctx);
+			ItemResolutionCache.clear(ctx);
+			stats.exitEnd(start);
+		}
+	}
+
+	public void finish(Context ctx) throws Exception {
+		for (Rule rule : rules) {
+			try {
+				rule.consumer.finish(ctx);
+			} catch (Exception e) {
+				log.error("Rule " + rule.name + " failed to finish", e);
+			}
+		}
+		ItemResolutionCache.clear(ctx);
+		ConsumerMetrics.release(stats);
+	}
+
+	private static class Rule {
+		private final String name;
+		private final Consumer consumer;
+		private final EventFilter filter;
+
+		Rule(String name, Consumer consumer, EventFilter filter) {
+			this.name = name;
+			this.consumer = consumer;
+			this.filter = filter;
+		}
+	}
+}
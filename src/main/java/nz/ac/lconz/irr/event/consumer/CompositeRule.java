@@ -0,0 +1,16 @@
+package nz.ac.lconz.irr.event.consumer;
+
+import org.dspace.core.Context;
+
+/**
+ * Consumer that knows it may run as a rule of {@link CompositeConsumer}. There the per-context memos shared by all
+ * rules ({@link nz.ac.lconz.irr.event.util.ItemResolutionCache}, {@link nz.ac.lconz.irr.event.util.MetadataProjection})
+ * are cleared once by the composite at the end of the commit, rather than by each rule in turn.
+ */
+interface CompositeRule {
+	/**
+	 * Like {@link org.dspace.event.Consumer#end(Context)}, but leave the shared per-context memos alone.
+	 * @param ctx the DSpace context
+	 */
+	void endRule(Context ctx) throws Exception;
+}
@@ -0,0 +1,15 @@
+package nz.ac.lconz.irr.event.consumer;
+
+import org.dspace.event.Consumer;
+
+/**
+ * Event consumer that declares which events it acts on, so that other events can be rejected without calling it (see
+ * {@link CompositeConsumer}).
+ */
+public interface FilteredConsumer extends Consumer {
+	/**
+	 * @return the subject and event types this consumer acts on, in the syntax of the event.consumer.[name].filters
+	 * setting in dspace.cfg (see {@link nz.ac.lconz.irr.event.util.EventFilter})
+	 */
+	String getEventFilter();
+}
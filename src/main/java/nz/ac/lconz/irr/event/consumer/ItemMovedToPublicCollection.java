@@ -1,15 +1,15 @@
 package nz.ac.lconz.irr.event.consumer;
 
-import org.dspace.authorize.AuthorizeManager;
+import nz.ac.lconz.irr.event.util.AnonymousReadCache;
 import org.dspace.content.Collection;
-import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.core.Constants;
 import org.dspace.core.Context;
-import org.dspace.eperson.Group;
 import org.dspace.event.Event;
 
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  *  @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ IRRs
@@ -17,28 +17,44 @@ import java.sql.SQLException;
  *  Event consumer that checks whether the event represents an item that has been moved to a publicly-readable collection.
  */
 public class ItemMovedToPublicCollection extends QueueTaskOnEvent {
+	// decisions made for the current context, so each destination collection is checked only once per context
+	private Map<Integer, Boolean> decisions = new HashMap<Integer, Boolean>();
+	private Context decisionsContext;
+
 	@Override
 	Item findItem(Context ctx, Event event) throws SQLException {
 		return (Item) event.getObject(ctx);
 	}
 
+	@Override
+	public String getEventFilter() {
+		return "Collection+Add";
+	}
+
 	@Override
 	boolean isApplicableEvent(Context ctx, Event event) throws SQLException {
-		if (event.getSubjectType() != Constants.COLLECTION || event.getObjectType() != Constants.ITEM || event.getEventType() != Event.ADD) {
+		if (event.getObjectType() != Constants.ITEM) {
 			return false;
 		}
-		Collection destinationCollection = (Collection) event.getSubject(ctx);
-		return anonymousCanRead(ctx, destinationCollection);
+		if (decisionsContext != ctx) {
+			decisions.clear();
+			decisionsContext = ctx;
+		}
+		int collectionId = event.getSubjectID();
+		Boolean readable = decisions.get(collectionId);
+		if (readable == null) {
+			Collection destinationCollection = (Collection) event.getSubject(ctx);
+			readable = destinationCollection != null && AnonymousReadCache.anonymousCanRead(ctx, destinationCollection);
+			decisions.put(collectionId, readable);
+		}
+		return readable;
 	}
 
-	private boolean anonymousCanRead(Context ctx, DSpaceObject dso) throws SQLException {
-		Group[] readGroups = AuthorizeManager.getAuthorizedGroups(ctx, dso, Constants.READ);
-		for (Group group : readGroups) {
-			if (group.getID() == 0) {
-				return true;
-			}
-		}
-		return false;
+	@Override
+	public void finish(Context ctx) throws Exception {
+		super.finish(ctx);
+		decisions.clear();
+		decisionsContext = null;
 	}
 
 	@Override
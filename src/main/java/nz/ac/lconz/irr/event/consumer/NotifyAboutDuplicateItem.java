@@ -1,78 +1,119 @@
 package nz.ac.lconz.irr.event.consumer;
 
+import nz.ac.lconz.irr.event.metrics.ConsumerMetrics;
+import nz.ac.lconz.irr.event.metrics.ConsumerStats;
+import nz.ac.lconz.irr.event.notify.NotificationEngine;
+import nz.ac.lconz.irr.event.notify.NotificationSubject;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.EventFilter;
+import nz.ac.lconz.irr.event.util.ItemResolutionCache;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
+import nz.ac.lconz.irr.event.util.PatternSetMatcher;
 import org.dspace.content.Item;
-import org.dspace.content.Metadatum;
 import org.dspace.core.*;
-import org.dspace.eperson.EPerson;
-import org.dspace.eperson.Group;
-import org.dspace.event.Consumer;
 import org.dspace.event.Event;
-import org.dspace.handle.HandleManager;
 
 import javax.mail.MessagingException;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  *
  * Event consumer to notify a given group when an item is made live that contains "this item replaces another item with handle" in dc.description.provenance.
+ *
+ * The trigger phrases can be configured via notify.duplicate.triggers (comma separated, or one per numbered property
+ * notify.duplicate.triggers.1, .2, ... for patterns containing commas; prefix a pattern with regex: to
+ * use a regular expression). At most one notification is sent per item per context.
  */
-public class NotifyAboutDuplicateItem implements Consumer {
-	private Integer recipientsGroupId = -1;
-	private static final String triggerString = "this item replaces another item with handle";
+public class NotifyAboutDuplicateItem implements FilteredConsumer, CompositeRule {
+	private static final String TRIGGERS_PROPERTY = "notify.duplicate.triggers";
+	private static final String NOTIFICATION_TYPE = "duplicate";
+	private static final String PROVENANCE_FIELD = "dc.description.provenance";
+	private static final String EVENT_FILTER = "Item+Install";
+	private static final EventFilter FILTER = new EventFilter(EVENT_FILTER);
+	private static final List<String> DEFAULT_TRIGGERS = Collections.singletonList("this item replaces another item with handle");
+
+	// items already notified about in the current context
+	private Set<Integer> notified = new HashSet<Integer>();
+	private Context notifiedContext;
+
+	private final ConsumerStats stats = ConsumerMetrics.get(getClass().getSimpleName());
 
 	public void initialize() throws Exception {
-		String recipientsGroup = ConfigurationManager.getProperty("lconz-event", "notify.duplicate.recipients-group-id");
-		if (recipientsGroup == null || recipientsGroup.length() == 0) {
-			System.err.println("NotifyAboutDuplicateItem: no configuration value found for notification recipients, can't initialise.");
-			return;
+		MetadataProjection.register(PROVENANCE_FIELD);
+		if (EventConsumerConfig.current().getDuplicateRecipientsGroupId() < 0) {
+			System.err.println("NotifyAboutDuplicateItem: no (numeric) configuration value found for notification recipients.");
 		}
+	}
+
+	public String getEventFilter() {
+		return EVENT_FILTER;
+	}
+
+	public void consume(Context context, Event event) throws Exception {
+		long start = stats.enter();
 		try {
-			recipientsGroupId = Integer.valueOf(recipientsGroup);
-		} catch (NumberFormatException e) {
-			System.err.printf("NotifyAboutDuplicateItem: notification recipients group ID %s isn't numeric, can't initialise.\n", recipientsGroup);
+			stats.eventSeen();
+			consumeEvent(context, event);
+		} catch (Exception e) {
+			stats.error();
+			throw e;
+		} finally {
+			stats.exitConsume(start);
 		}
 	}
 
-	public void consume(Context context, Event event) throws Exception {
-		if (event.getSubjectType() != Constants.ITEM || event.getEventType() != Event.INSTALL) {
+	private void consumeEvent(Context context, Event event) throws Exception {
+		if (!FILTER.matches(event)) {
+			stats.eventFiltered();
 			return; // wrong type of dso or of event -> ignore
 		}
 
-		Item item = (Item) event.getSubject(context);
-		Metadatum[] provenanceValues = item.getMetadataByMetadataString("dc.description.provenance");
-		for (Metadatum provenanceValue : provenanceValues) {
-			if (provenanceValue != null && provenanceValue.value != null && provenanceValue.value.contains(triggerString)) {
-				sendNotification(context, item);
-			}
+		if (notifiedContext != context) {
+			notified.clear();
+			notifiedContext = context;
+		}
+		if (notified.contains(event.getSubjectID())) {
+			return; // already notified about this item
 		}
-	}
 
-	private void sendNotification(Context context, Item item) throws SQLException, IOException, MessagingException {
-		Group recipients = Group.find(context, recipientsGroupId);
-		if (recipients == null) {
-			System.err.println("NotifyAboutDuplicateItem: notification group not found");
+		Item item = ItemResolutionCache.resolve(context, event).getItem(context);
+		if (item == null) {
 			return;
 		}
-
-		String emailFilename = I18nUtil.getEmailFilename(Locale.getDefault(), "notify_duplicate");
-		if (emailFilename == null || "".equals(emailFilename.trim())) {
-			System.err.println("NotifyAboutDuplicateItem: e-mail template (notify_duplicate) not found");
-			return; // no e-mail to send
+		List<String> provenanceValues = MetadataProjection.getValues(context, item, PROVENANCE_FIELD);
+		PatternSetMatcher triggers = EventConsumerConfig.current().getMatcher(TRIGGERS_PROPERTY, DEFAULT_TRIGGERS);
+		if (triggers.matchesAny(provenanceValues)) {
+			notified.add(item.getID());
+			sendNotification(context, item);
 		}
-		Email message = Email.getEmail(emailFilename);
-		for (EPerson member : recipients.getMembers()) {
-			message.addRecipient(member.getEmail());
+	}
+
+	private void sendNotification(Context context, Item item) throws SQLException, IOException, MessagingException {
+		if (NotificationEngine.send(context, NOTIFICATION_TYPE, new NotificationSubject(context, item))) {
+			stats.mailSent();
 		}
-		message.addArgument(HandleManager.resolveToURL(context, item.getHandle()));
-		message.send();
 	}
 
 	public void end(Context context) throws Exception {
+		endRule(context);
+		MetadataProjection.clear(context);
+		ItemResolutionCache.clear(context);
+	}
+
+	public void endRule(Context context) {
+		// nothing to do at the end of the commit apart from clearing the shared memos
 	}
 
 	public void finish(Context context) throws Exception {
+		notified.clear();
+		notifiedContext = null;
+		ItemResolutionCache.clear(context);
+		ConsumerMetrics.release(stats);
 	}
 }
@@ -1,17 +1,23 @@
 package nz.ac.lconz.irr.event.consumer;
 
+import nz.ac.lconz.irr.event.metrics.ConsumerMetrics;
+import nz.ac.lconz.irr.event.metrics.ConsumerStats;
+import nz.ac.lconz.irr.event.notify.NotificationEngine;
+import nz.ac.lconz.irr.event.notify.NotificationSubject;
+import nz.ac.lconz.irr.event.util.BulkManifest;
+import nz.ac.lconz.irr.event.util.BulkMode;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.EventFilter;
+import nz.ac.lconz.irr.event.util.ItemResolutionCache;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
 import org.apache.commons.lang.StringUtils;
 import org.dspace.content.DCDate;
 import org.dspace.content.Item;
-import org.dspace.content.Metadatum;
 import org.dspace.core.*;
-import org.dspace.event.Consumer;
 import org.dspace.event.Event;
-import org.dspace.handle.HandleManager;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Locale;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ IRRs
@@ -35,89 +41,76 @@ import java.util.Locale;
  *         message needs to be configured in <code>[dspace-src]/dspace-api/src/main/resources/Messages.properties</code>.
  *         If the special field is not present, the two additional arguments will be the empty string.
  */
-public class NotifyRealAuthorOfArchive implements Consumer {
-	private String schema;
-	private String element;
-	private String qualifier;
-	private String specialField;
-	private String specialFieldType;
+public class NotifyRealAuthorOfArchive implements FilteredConsumer, CompositeRule {
+	private static final String SPECIAL_FIELD = "notify.author.archive.special.field";
+	private static final String SPECIAL_FIELD_TYPE = "notify.author.archive.special.type";
+	private static final String NOTIFICATION_TYPE = "author.archive";
+	private static final String EVENT_FILTER = "Item+Install";
+	private static final EventFilter FILTER = new EventFilter(EVENT_FILTER);
 
-	public void initialize() throws Exception {
-		String emailField = ConfigurationManager.getProperty("lconz-event", "notify.author.archive.field");
-		if (emailField == null || emailField.length() == 0) {
-			System.err.println("NotifyRealAuthorOfArchive: no configuration value found for author e-mail field, can't initialise.");
-			return;
-		}
-		String[] components = emailField.split("\\.");
-		if (components.length < 2) {
-			System.err.println("NotifyRealAuthorOfArchive: no configuration value found for author e-mail field, can't initialise.");
-			return;
-		}
+	private final ConsumerStats stats = ConsumerMetrics.get(getClass().getSimpleName());
 
-		schema = components[0];
-		element = components[1];
-		if (components.length > 2) {
-			qualifier = components[2];
+	public void initialize() throws Exception {
+		MetadataProjection.register(EventConsumerConfig.current().getProperty("notify.author.archive.field"), EventConsumerConfig.current().getProperty(SPECIAL_FIELD));
+		if (EventConsumerConfig.current().getAuthorEmailField() == null) {
+			System.err.println("NotifyRealAuthorOfArchive: no configuration value found for author e-mail field.");
 		}
+	}
 
-		specialField = ConfigurationManager.getProperty("lconz-event", "notify.author.archive.special.field");
-		specialFieldType = ConfigurationManager.getProperty("lconz-event", "notify.author.archive.special.type");
+	public String getEventFilter() {
+		return EVENT_FILTER;
 	}
 
 	public void consume(Context context, Event event) throws Exception {
-		if (schema == null && element == null && qualifier == null) {
-			System.err.println("NotifyRealAuthorOfArchive: no configuration value found for author e-mail field, aborting.");
-			return;
+		long start = stats.enter();
+		try {
+			stats.eventSeen();
+			consumeEvent(context, event);
+		} catch (Exception e) {
+			stats.error();
+			throw e;
+		} finally {
+			stats.exitConsume(start);
 		}
+	}
 
-		if (event.getSubjectType() != Constants.ITEM || event.getEventType() != Event.INSTALL) {
+	private void consumeEvent(Context context, Event event) throws Exception {
+		if (!FILTER.matches(event)) {
+			stats.eventFiltered();
 			return; // wrong type of dso or of event -> ignore
 		}
-		Item item = (Item) event.getSubject(context);
-		String submitterEmail = item.getSubmitter().getEmail();
-		Metadatum[] authors = item.getMetadata(schema, element, qualifier, Item.ANY);
-		if (authors == null || authors.length == 0) {
-			return; // nothing to do
-		}
 
-		String emailFilename = I18nUtil.getEmailFilename(Locale.getDefault(), "author_notify_archive");
-		if (emailFilename == null || "".equals(emailFilename.trim())) {
-			return; // no e-mail to send
+		EventConsumerConfig config = EventConsumerConfig.current();
+		String[] emailField = config.getAuthorEmailField();
+		if (emailField == null) {
+			System.err.println("NotifyRealAuthorOfArchive: no configuration value found for author e-mail field, aborting.");
+			return;
 		}
-		Email message = Email.getEmail(emailFilename);
-		int recipients = 0;
-		for (Metadatum author : authors) {
-			String authorEmail = author.value;
-			if (authorEmail != null && !authorEmail.equalsIgnoreCase(submitterEmail)) {
-				message.addRecipient(authorEmail);
-				recipients++;
-			}
+		if (BulkMode.isActive(context)) {
+			// bulk import -> authors get one summary afterwards rather than one e-mail per item
+			BulkManifest.get(BulkManifest.NOTIFY_PREFIX + NOTIFICATION_TYPE).add(event.getSubjectID());
+			return;
 		}
-		if (recipients == 0) {
-			return; // no e-mail to send
+		Item item = ItemResolutionCache.resolve(context, event).getItem(context);
+		if (item == null) {
+			return;
 		}
-
-		message.addArgument(item.getName());
-		message.addArgument(item.getOwningCollection().getName());
-		message.addArgument(HandleManager.getCanonicalForm(item.getHandle()));
-
-		boolean addedSpecialText = false;
+		NotificationSubject subject = new NotificationSubject(context, item);
+		// blank by default to prevent placeholder from showing up in e-mail
+		subject.setValue("special.message", "");
+		subject.setValue("special.value", "");
+		String specialField = config.getProperty(SPECIAL_FIELD);
 		if (StringUtils.isNotBlank(specialField)) {
-			Metadatum[] values = item.getMetadataByMetadataString(specialField);
-			if (values != null && values.length > 0 && values[0] != null && StringUtils.isNotBlank(values[0].value)) {
-				message.addArgument(I18nUtil.getMessage("lconz-extra.notify-author.special.message"));
-				String formattedValue = formatValue(values[0].value, specialFieldType);
-				message.addArgument(formattedValue);
-				addedSpecialText = true;
+			String specialValue = MetadataProjection.getFirstValue(context, item, specialField);
+			if (StringUtils.isNotBlank(specialValue)) {
+				subject.setValue("special.message", I18nUtil.getMessage("lconz-extra.notify-author.special.message"));
+				subject.setValue("special.value", formatValue(specialValue, config.getProperty(SPECIAL_FIELD_TYPE)));
 			}
 		}
-		if (!addedSpecialText) {
-			// blank out values to prevent placeholder from showing up in e-mail
-			message.addArgument("");
-			message.addArgument("");
-		}
 
-		message.send();
+		if (NotificationEngine.send(context, NOTIFICATION_TYPE, subject)) {
+			stats.mailSent();
+		}
 	}
 
 	private String formatValue(String specialValue, String specialFieldType) {
@@ -130,8 +123,17 @@ public class NotifyRealAuthorOfArchive implements Consumer {
 	}
 
 	public void end(Context context) throws Exception {
+		endRule(context);
+		MetadataProjection.clear(context);
+		ItemResolutionCache.clear(context);
+	}
+
+	public void endRule(Context context) {
+		// nothing to do at the end of the commit apart from clearing the shared memos
 	}
 
 	public void finish(Context context) throws Exception {
+		ItemResolutionCache.clear(context);
+		ConsumerMetrics.release(stats);
 	}
 }
@@ -1,17 +1,13 @@
 package nz.ac.lconz.irr.event.consumer;
 
-import org.apache.commons.lang3.StringUtils;
-import org.dspace.content.Bundle;
-import org.dspace.content.DSpaceObject;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.ItemResolutionCache;
 import org.dspace.content.Item;
-import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.event.Event;
 
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  *  @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ IRRs
@@ -26,24 +22,23 @@ import java.util.List;
  * (default: continually). This task queue should then be run regularly and quite often, eg using a cronjob that runs
  * every minute or two.
  *
+ * Changes to bundles named in queue.bitstreamchange.ignore_bundles (comma separated list, default: TEXT, THUMBNAIL,
+ * PUBS_DATA) are ignored.
+ *
+ * If queue.bitstreamchange.debounce is set to a number of seconds, items aren't queued straight away but wait until
+ * their files haven't changed for that long, so that several edits in quick succession result in a single run of the
+ * tasks (see {@link nz.ac.lconz.irr.event.util.PendingCurationSet}).
+ *
  */
 public class QueueTaskOnBitstreamChange extends QueueTaskOnEvent {
 
 	@Override
 	Item findItem(Context ctx, Event event) throws SQLException {
-		if (event.getSubject(ctx) == null) {
-			return null;
-		}
-
+		Item result = ItemResolutionCache.resolve(ctx, event).getItem(ctx);
 		if (event.getSubjectType() == Constants.ITEM) {
-			return (Item) event.getSubject(ctx);
+			return result;
 		}
 
-		Item result = null;
-		Object parent = event.getSubject(ctx).getParentObject();
-		if (parent != null && parent instanceof Item) {
-			result = (Item) parent;
-		}
 		if (result != null && result.isArchived()) {
 			return result;
 		}
@@ -51,23 +46,17 @@ public class QueueTaskOnBitstreamChange extends QueueTaskOnEvent {
 	}
 
 	@Override
-	boolean isApplicableEvent(Context ctx, Event event) throws SQLException {
-		String ignoreBundlesProp = ConfigurationManager.getProperty("lconz-events", "queue.bitstreamchange.ignore_bundles");
-		List<String> ignoreBundles;
-		if (StringUtils.isNotBlank(ignoreBundlesProp)) {
-			ignoreBundles = Arrays.asList(ignoreBundlesProp.split(",\\s*"));
-		} else {
-			ignoreBundles = Arrays.asList("TEXT", "THUMBNAIL", "PUBS_DATA");
-		}
+	public String getEventFilter() {
+		return "Bundle+Add|Remove:Item+Remove";
+	}
 
-		int eventType = event.getEventType();
-		boolean eligible = (event.getSubjectType() == Constants.BUNDLE && (eventType == Event.ADD || eventType == Event.REMOVE))
-				|| (event.getSubjectType() == Constants.ITEM && eventType == Event.REMOVE) && (findItem(ctx, event) != null);
-		if (!eligible || event.getSubjectType() != Constants.BUNDLE) {
-			return eligible;
+	@Override
+	boolean isApplicableEvent(Context ctx, Event event) throws SQLException {
+		if (event.getSubjectType() != Constants.BUNDLE) {
+			return findItem(ctx, event) != null;
 		}
-		Bundle subject = (Bundle) event.getSubject(ctx);
-		return !ignoreBundles.contains(subject.getName());
+		String bundleName = ItemResolutionCache.resolve(ctx, event).getSubjectName();
+		return !EventConsumerConfig.current().getIgnoreBundles().contains(bundleName);
 	}
 
 	String getTasksProperty() {
@@ -77,4 +66,9 @@ public class QueueTaskOnBitstreamChange extends QueueTaskOnEvent {
 	String getQueueProperty() {
 		return "queue.bitstreamchange.name";
 	}
+
+	@Override
+	String getDebounceProperty() {
+		return "queue.bitstreamchange.debounce";
+	}
 }
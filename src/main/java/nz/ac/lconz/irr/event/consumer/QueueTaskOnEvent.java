@@ -1,70 +1,133 @@
 package nz.ac.lconz.irr.event.consumer;
 
+import nz.ac.lconz.irr.event.metrics.ConsumerMetrics;
+import nz.ac.lconz.irr.event.metrics.ConsumerStats;
+import nz.ac.lconz.irr.event.util.ApplicableEventTracker;
+import nz.ac.lconz.irr.event.util.BulkMode;
+import nz.ac.lconz.irr.event.util.CurationBatch;
 import nz.ac.lconz.irr.event.util.CurationHelper;
+import nz.ac.lconz.irr.event.util.EventFilter;
+import nz.ac.lconz.irr.event.util.ItemResolutionCache;
 import org.apache.log4j.Logger;
 import org.dspace.content.Item;
 import org.dspace.core.Context;
-import org.dspace.event.Consumer;
 import org.dspace.event.Event;
 
 import java.sql.SQLException;
-import java.util.LinkedList;
 
 /**
  *  @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ IRRs
  *
  * Abstract event consumer that queues curation tasks when specific events occur.
  */
-public abstract class QueueTaskOnEvent implements Consumer {
+public abstract class QueueTaskOnEvent implements FilteredConsumer {
 	private static Logger log = Logger.getLogger(QueueTaskOnEvent.class);
 
 	private CurationHelper helper;
+	private EventFilter filter;
+	private ApplicableEventTracker tracker = new ApplicableEventTracker();
+	private final ConsumerStats stats = ConsumerMetrics.get(getClass().getSimpleName());
 
 	public void initialize() throws Exception {
+		filter = new EventFilter(getEventFilter());
 		helper = new CurationHelper();
 		helper.initTaskNames(getTasksProperty());
+		helper.initQueueName(getQueueProperty());
+		helper.initDebounce(getDebounceProperty());
 		if (!helper.hasTaskNames()) {
-			log.error("QueueTaskOnEvent: no configuration value found for tasks to queue (" + getTasksProperty() + "), can't initialise.");
-			return;
+			// tasks are re-read from the configuration, so they may still be added later without a restart
+			log.error("QueueTaskOnEvent: no configuration value found for tasks to queue (" + getTasksProperty() + "), nothing will be queued until it is set.");
 		}
-
-		helper.initQueueName(getQueueProperty());
 	}
 
 	public void consume(Context ctx, Event event) throws Exception {
-		Item item = null;
-
-		if (isApplicableEvent(ctx, event)) {
-			// check whether it is the last applicable event in the queue
-			LinkedList<Event> events = ctx.getEvents();
-			for (Event queuedEvent : events) {
-				if (isApplicableEvent(ctx, queuedEvent)) {
-					return;
-				}
+		long start = stats.enter();
+		try {
+			stats.eventSeen();
+			if (accepts(ctx, event)) {
+				// only the last applicable event in the queue is acted upon; remember it and resolve it in end()
+				tracker.record(ctx, event);
+			} else {
+				stats.eventFiltered();
 			}
-			item = findItem(ctx, event);
-		}
-
-		if (item == null) {
-			// not applicable -> skip
-			return;
+		} catch (Exception e) {
+			stats.error();
+			throw e;
+		} finally {
+			stats.exitConsume(start);
 		}
+	}
 
-		helper.addToQueue(item);
+	/**
+	 * @return whether this consumer acts on the event
+	 */
+	boolean accepts(Context ctx, Event event) throws SQLException {
+		// cheap check on subject and event type first, so that most events never get as far as the database
+		return filter.matches(event) && isApplicableEvent(ctx, event);
 	}
 
 	abstract Item findItem(Context ctx, Event event) throws SQLException;
 
+	/**
+	 * Further checks for events that have passed the {@link #getEventFilter() event filter}.
+	 */
 	abstract boolean isApplicableEvent(Context ctx, Event event) throws SQLException;
 
 	public void end(Context ctx) throws Exception {
-		helper.queueForCuration(ctx);
+		try {
+			CurationBatch batch = CurationHelper.newBatch();
+			end(ctx, batch);
+			CurationHelper.submit(ctx, batch);
+		} finally {
+			ItemResolutionCache.clear(ctx);
+		}
+	}
+
+	/**
+	 * Like {@link #end(Context)}, but add the tasks to the given batch rather than queueing them, so that several
+	 * consumers can share one batch (see {@link CompositeConsumer}).
+	 * @param ctx the DSpace context
+	 * @param batch the batch to add to
+	 */
+	void end(Context ctx, CurationBatch batch) throws Exception {
+		long start = stats.enter();
+		try {
+			Event lastApplicable = tracker.getLastApplicable(ctx);
+			tracker.reset();
+			if (lastApplicable != null) {
+				Item item = findItem(ctx, lastApplicable);
+				if (item != null && BulkMode.isActive(ctx)) {
+					// bulk import -> just remember the item, tasks are queued for all items at once afterwards
+					helper.addToManifest(item);
+				} else if (item != null) {
+					helper.addToQueue(item);
+					stats.itemsQueued(1);
+				}
+			}
+			helper.collect(batch);
+		} catch (Exception e) {
+			stats.error();
+			throw e;
+		} finally {
+			stats.exitEnd(start);
+		}
 	}
 
 	public void finish(Context ctx) throws Exception {
+		tracker.reset();
+		ItemResolutionCache.clear(ctx);
+		ConsumerMetrics.release(stats);
 	}
 
 	abstract String getTasksProperty();
 
 	abstract String getQueueProperty();
+
+	/**
+	 * @return the configuration property holding the quiet period (in seconds) for which items should wait before
+	 * their tasks are queued, or null if this consumer queues tasks straight away
+	 */
+	String getDebounceProperty() {
+		return null;
+	}
 }
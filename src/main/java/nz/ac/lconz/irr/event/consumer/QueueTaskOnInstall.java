@@ -1,7 +1,7 @@
 package nz.ac.lconz.irr.event.consumer;
 
+import nz.ac.lconz.irr.event.util.ItemResolutionCache;
 import org.dspace.content.Item;
-import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.event.Event;
 
@@ -33,12 +33,17 @@ public class QueueTaskOnInstall extends QueueTaskOnEvent {
 		return "queue.install.name";
 	}
 
+	@Override
+	public String getEventFilter() {
+		return "Item+Install";
+	}
+
 	@Override
 	boolean isApplicableEvent(Context ctx, Event event) {
-		return event.getSubjectType() == Constants.ITEM && event.getEventType() == Event.INSTALL;
+		return true;
 	}
 
 	Item findItem(Context ctx, Event event) throws SQLException {
-		return (Item) event.getSubject(ctx);
+		return ItemResolutionCache.resolve(ctx, event).getItem(ctx);
 	}
 }
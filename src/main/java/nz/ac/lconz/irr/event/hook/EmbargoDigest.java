@@ -0,0 +1,188 @@
+package nz.ac.lconz.irr.event.hook;
+
+import nz.ac.lconz.irr.event.mail.MailDispatcher;
+import nz.ac.lconz.irr.event.mail.MailMessage;
+import nz.ac.lconz.irr.event.mail.MailTemplateCache;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import org.apache.log4j.Logger;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects embargo notifications so that they can be sent as a single digest e-mail per notification type and group
+ * of recipients, rather than one e-mail per item.
+ *
+ * Digests are switched on per notification template, by setting <code>embargo.notify.digest.[template] = true</code>
+ * in lconz-event.cfg (eg <code>embargo.notify.digest.notify_embargo_lift = true</code>). Collected notifications are
+ * sent when {@link #flush()} is called (eg at the end of an embargo lifter run), when the JVM shuts down, or once the
+ * oldest collected notification is <code>embargo.notify.digest.window</code> minutes old (default: 60; 0 means only
+ * at the end of a run / on shutdown).
+ *
+ * The digest uses the <code>notify_embargo_digest</code> template with the arguments
+ * {0} type of notification, {1} number of items, {2} list of items (handle, title, author, date, URL).
+ */
+public class EmbargoDigest {
+	private static final Logger log = Logger.getLogger(EmbargoDigest.class);
+
+	static final String EMAIL_TEMPLATE_DIGEST = "notify_embargo_digest";
+	private static final String DIGEST_ENABLED_PREFIX = "embargo.notify.digest.";
+	private static final String DIGEST_WINDOW = "embargo.notify.digest.window";
+
+	private static final Map<String, Digest> digests = new LinkedHashMap<String, Digest>();
+	private static ScheduledExecutorService timer;
+
+	/**
+	 * @param template the name of the e-mail template that would be used for a single notification
+	 * @return whether notifications using this template should be collected into a digest
+	 */
+	public static boolean isEnabled(String template) {
+		return EventConsumerConfig.current().getBooleanProperty(DIGEST_ENABLED_PREFIX + template, false);
+	}
+
+	/**
+	 * Add a notification to the digest for its type and recipients.
+	 * @param template the name of the e-mail template that would be used for a single notification
+	 * @param description description of the type of notification, used in the digest
+	 * @param recipients the e-mail addresses of the recipients
+	 * @param entry the item the notification is about
+	 */
+	public static void add(String template, String description, String[] recipients, Entry entry) {
+		String key = template + "|" + Arrays.toString(recipients);
+		synchronized (digests) {
+			Digest digest = digests.get(key);
+			if (digest == null) {
+				digest = new Digest(description, recipients);
+				digests.put(key, digest);
+				ensureTimer();
+			}
+			digest.entries.add(entry);
+		}
+	}
+
+	/**
+	 * Send all collected digests now.
+	 */
+	public static void flush() {
+		List<Digest> toSend;
+		synchronized (digests) {
+			toSend = new ArrayList<Digest>(digests.values());
+			digests.clear();
+		}
+		for (Digest digest : toSend) {
+			send(digest);
+		}
+	}
+
+	/**
+	 * Send the digests whose oldest notification has been waiting for longer than the configured window.
+	 */
+	static void flushExpired() {
+		int windowMinutes = EventConsumerConfig.current().getIntProperty(DIGEST_WINDOW, 60);
+		if (windowMinutes <= 0) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - windowMinutes * 60 * 1000L;
+		List<Digest> toSend = new ArrayList<Digest>();
+		synchronized (digests) {
+			for (Map.Entry<String, Digest> entry : new ArrayList<Map.Entry<String, Digest>>(digests.entrySet())) {
+				if (entry.getValue().started < cutoff) {
+					toSend.add(entry.getValue());
+					digests.remove(entry.getKey());
+				}
+			}
+		}
+		for (Digest digest : toSend) {
+			send(digest);
+		}
+	}
+
+	private static void ensureTimer() {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lconz-embargo-digest");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushExpired();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}));
+	}
+
+	private static void send(Digest digest) {
+		if (digest.entries.isEmpty() || digest.recipients.length == 0) {
+			return;
+		}
+		StringBuilder list = new StringBuilder();
+		for (Entry entry : digest.entries) {
+			list.append(entry.handle).append("  ").append(entry.title).append("\n");
+			list.append("    ").append(entry.author).append(", ").append(entry.date).append("\n");
+			list.append("    ").append(entry.url).append("\n\n");
+		}
+		try {
+			MailMessage message = MailTemplateCache.getMessage(Locale.getDefault(), EMAIL_TEMPLATE_DIGEST);
+			for (String recipient : digest.recipients) {
+				message.addRecipient(recipient);
+			}
+			message.addArgument(digest.description);
+			message.addArgument(digest.entries.size());
+			message.addArgument(list.toString());
+			MailDispatcher.dispatch(message);
+			log.info("Sent digest of " + digest.entries.size() + " notifications (" + digest.description + ")");
+		} catch (IOException | MessagingException e) {
+			log.warn("Problem sending digest of " + digest.entries.size() + " notifications (" + digest.description + ")", e);
+		}
+	}
+
+	/**
+	 * One item in a digest.
+	 */
+	public static class Entry {
+		private final String handle;
+		private final String title;
+		private final String author;
+		private final String date;
+		private final String url;
+
+		public Entry(String handle, String title, String author, String date, String url) {
+			this.handle = handle;
+			this.title = title;
+			this.author = author;
+			this.date = date;
+			this.url = url;
+		}
+	}
+
+	private static class Digest {
+		private final String description;
+		private final String[] recipients;
+		private final List<Entry> entries = new ArrayList<Entry>();
+		private final long started = System.currentTimeMillis();
+
+		Digest(String description, String[] recipients) {
+			this.description = description;
+			this.recipients = recipients;
+		}
+	}
+}
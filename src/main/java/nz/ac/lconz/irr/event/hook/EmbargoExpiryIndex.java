@@ -0,0 +1,422 @@
+package nz.ac.lconz.irr.event.hook;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.LockedFile;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.content.DCDate;
+import org.dspace.content.Item;
+import org.dspace.content.ItemIterator;
+import org.dspace.content.Metadatum;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Persistent index of embargo lift dates, bucketed by day, used to warn the embargo notification group a number of
+ * days before embargoes expire without looking at every embargoed item every day.
+ *
+ * {@link EmbargoHooks#atEmbargoSet(Context, Item, DCDate)} and {@link EmbargoHooks#atEmbargoLifted(Context, Item)}
+ * append changes to the index. The daily run (this class from the command line) visits the buckets up to today +
+ * <code>embargo.notify.advance.days</code> (default: 14), oldest first, and runs
+ * {@link EmbargoHooks#atEmbargoAboutToExpire(Context, Item, DCDate)} for each item that hasn't had a notice for its
+ * current lift date yet. Each notice is recorded per item, so embargoes that are set (or moved) to a date that is
+ * already inside the window still get their notice on the next run. Items whose lift date has already passed by the
+ * time they are visited (eg because runs were missed) don't get a notice any more. Items whose lift date has been
+ * changed without the hook being run are moved to their new bucket (and notified straight away if the new date is
+ * inside the window). The run then rewrites the index sorted by day, leaving out items whose lift date has passed.
+ *
+ * The index is kept in <code>embargo.notify.advance.index</code> (default: [dspace]/var/lconz-embargo-expiry.index).
+ * Changes are appended to it; the daily run replaces it as a whole (written to a temporary file, then renamed). A
+ * separate lock file is locked while the index is being changed, so that all webapps and command line tools can share
+ * it. Embargoes set before the index was introduced are added by running this class with -b once.
+ *
+ * Run via [dspace]/bin/dspace dsrun nz.ac.lconz.irr.event.hook.EmbargoExpiryIndex [-d days] [-b] [-l] [-n]
+ */
+public class EmbargoExpiryIndex {
+	private static final Logger log = Logger.getLogger(EmbargoExpiryIndex.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	// clear the context's object cache (and metadata memo) after notifying about this many items
+	private static final int CHUNK_SIZE = 100;
+
+	private final File file;
+	private final File lockFile;
+
+	public EmbargoExpiryIndex(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+	}
+
+	/**
+	 * @return the index in the configured file
+	 */
+	public static EmbargoExpiryIndex getDefault() {
+		String defaultFile = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-embargo-expiry.index";
+		return new EmbargoExpiryIndex(new File(EventConsumerConfig.current().getProperty("embargo.notify.advance.index", defaultFile)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("d", "days", true, "number of days ahead of the lift date to send notices");
+		options.addOption("b", "build", false, "add all embargoed items to the index (looks at every embargoed item)");
+		options.addOption("l", "list", false, "only list the index");
+		options.addOption("n", "dry-run", false, "only list the items notices are due for");
+		options.addOption("h", "help", false, "print this help message");
+
+		CommandLine line;
+		try {
+			line = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("EmbargoExpiryIndex", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("EmbargoExpiryIndex", options);
+			return;
+		}
+
+		EmbargoExpiryIndex index = getDefault();
+		if (line.hasOption("l")) {
+			Index contents = index.read();
+			for (Map.Entry<Integer, SortedSet<Integer>> bucket : contents.buckets().entrySet()) {
+				StringBuilder items = new StringBuilder();
+				for (Integer itemId : bucket.getValue()) {
+					items.append(items.length() > 0 ? ", " : "").append(itemId).append(contents.isNotified(itemId) ? " (notified)" : "");
+				}
+				System.out.println(new DCDate(toDate(bucket.getKey())) + ": " + items);
+			}
+			return;
+		}
+
+		String liftField = ConfigurationManager.getProperty("embargo.field.lift");
+		if (StringUtils.isBlank(liftField)) {
+			System.err.println("No embargo lift field configured (embargo.field.lift in dspace.cfg)");
+			System.exit(1);
+			return;
+		}
+
+		Context context = new Context();
+		try {
+			context.turnOffAuthorisationSystem();
+			if (line.hasOption("b")) {
+				int added = index.build(context, liftField);
+				System.out.println("Added " + added + " embargoed items to the index");
+			}
+			int days = Integer.parseInt(line.getOptionValue("d", String.valueOf(EventConsumerConfig.current().getIntProperty("embargo.notify.advance.days", 14))));
+			int notified = index.notifyDue(context, liftField, today() + Math.max(0, days), line.hasOption("n"));
+			System.out.println("Sent notices about " + notified + " embargoes expiring in the next " + days + " days");
+		} finally {
+			context.abort();
+		}
+		EmbargoDigest.flush();
+	}
+
+	/**
+	 * Record the lift date of an item, replacing any earlier one.
+	 * @param itemId the ID of the item
+	 * @param liftDate the date the embargo will be lifted
+	 * @throws IOException if the index cannot be written to
+	 */
+	public void put(int itemId, Date liftDate) throws IOException {
+		append("+ " + itemId + " " + toDay(liftDate) + "\n");
+	}
+
+	/**
+	 * Forget the lift date of an item.
+	 * @param itemId the ID of the item
+	 * @throws IOException if the index cannot be written to
+	 */
+	public void remove(int itemId) throws IOException {
+		append("- " + itemId + "\n");
+	}
+
+	private void append(String line) throws IOException {
+		createParent();
+		try (LockedFile locked = LockedFile.lock(lockFile); FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(line.getBytes(UTF8));
+		}
+	}
+
+	private void createParent() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Cannot create directory for embargo expiry index " + parent.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Send notices for the items whose embargo is lifted between today and the given day and that haven't had a notice
+	 * for their current lift date yet.
+	 * @return the number of notices sent
+	 */
+	int notifyDue(Context context, String liftField, int throughDay, boolean dryRun) throws IOException {
+		Index index = read();
+		int today = today();
+		int sent = 0;
+		int seen = 0;
+		// item ID -> day as found in the index
+		Map<Integer, Integer> notified = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> gone = new HashMap<Integer, Integer>();
+		// item ID -> { day as found in the index, actual day }
+		Map<Integer, int[]> moved = new HashMap<Integer, int[]>();
+		for (Map.Entry<Integer, SortedSet<Integer>> bucket : index.buckets().headMap(throughDay + 1).entrySet()) {
+			int day = bucket.getKey();
+			for (Integer itemId : bucket.getValue()) {
+				if (index.isNotified(itemId)) {
+					continue;
+				}
+				try {
+					Item item = Item.find(context, itemId);
+					if (item == null || item.isWithdrawn()) {
+						gone.put(itemId, day);
+						continue;
+					}
+					String liftValue = MetadataProjection.getFirstValue(context, item, liftField);
+					Date liftDate = liftValue != null ? new DCDate(liftValue).toDate() : null;
+					if (liftDate == null) {
+						gone.put(itemId, day); // embargo has been removed without the hook being run
+						continue;
+					}
+					int liftDay = toDay(liftDate);
+					if (liftDay < today) {
+						gone.put(itemId, day); // lifted already, too late for a notice
+						continue;
+					}
+					if (liftDay != day) {
+						// lift date has been changed without the hook being run
+						moved.put(itemId, new int[] { day, liftDay });
+						if (liftDay > throughDay) {
+							continue; // not due yet, will be visited in its new bucket
+						}
+					}
+					if (dryRun) {
+						System.out.println("Item id=" + itemId + ": embargo lifted on " + liftValue);
+					} else {
+						EmbargoHooks.atEmbargoAboutToExpire(context, item, new DCDate(liftValue));
+					}
+					notified.put(itemId, liftDay);
+					sent++;
+				} catch (SQLException e) {
+					log.warn("Cannot look up item id=" + itemId + " for embargo expiry notice", e);
+				}
+				if (++seen % CHUNK_SIZE == 0) {
+					context.clearCache();
+					MetadataProjection.clear(context);
+				}
+			}
+		}
+
+		if (!dryRun) {
+			update(notified, moved, gone);
+		}
+		return sent;
+	}
+
+	/**
+	 * Add all items with a lift date in the future to the index.
+	 * @return the number of items added
+	 */
+	int build(Context context, String liftField) throws Exception {
+		String[] components = liftField.split("\\.");
+		String qualifier = components.length > 2 ? components[2] : null;
+		int today = today();
+		Map<Integer, Integer> found = new LinkedHashMap<Integer, Integer>();
+		ItemIterator items = Item.findByMetadataField(context, components[0], components[1], qualifier, Item.ANY);
+		try {
+			while (items.hasNext()) {
+				Item item = items.next();
+				Metadatum[] liftDates = item.getMetadata(components[0], components[1], qualifier, Item.ANY);
+				if (liftDates.length > 0 && liftDates[0].value != null) {
+					Date liftDate = new DCDate(liftDates[0].value).toDate();
+					if (liftDate != null && toDay(liftDate) >= today) {
+						found.put(item.getID(), toDay(liftDate));
+					}
+				}
+				item.decache();
+			}
+		} finally {
+			items.close();
+		}
+
+		createParent();
+		try (LockedFile locked = LockedFile.lock(lockFile)) {
+			Index index = readLocked();
+			for (Map.Entry<Integer, Integer> entry : found.entrySet()) {
+				index.put(entry.getKey(), entry.getValue());
+			}
+			write(index);
+		}
+		return found.size();
+	}
+
+	/**
+	 * Record the outcome of a run and rewrite the index sorted by day, leaving out items whose lift date has passed.
+	 * Changes are only applied to items whose entry hasn't changed since the run read the index.
+	 * @param notified item ID -> lift day the notice was sent for
+	 * @param moved item ID -> { day in the index, actual lift day }
+	 * @param gone item ID -> day in the index, for items that are no longer embargoed
+	 */
+	private void update(Map<Integer, Integer> notified, Map<Integer, int[]> moved, Map<Integer, Integer> gone) throws IOException {
+		createParent();
+		try (LockedFile locked = LockedFile.lock(lockFile)) {
+			Index index = readLocked();
+			for (Map.Entry<Integer, int[]> entry : moved.entrySet()) {
+				if (Integer.valueOf(entry.getValue()[0]).equals(index.days.get(entry.getKey()))) {
+					index.put(entry.getKey(), entry.getValue()[1]);
+				}
+			}
+			for (Map.Entry<Integer, Integer> entry : gone.entrySet()) {
+				if (entry.getValue().equals(index.days.get(entry.getKey()))) {
+					index.remove(entry.getKey());
+				}
+			}
+			for (Map.Entry<Integer, Integer> entry : notified.entrySet()) {
+				if (entry.getValue().equals(index.days.get(entry.getKey()))) {
+					index.notified.put(entry.getKey(), entry.getValue());
+				}
+			}
+			int today = today();
+			for (Iterator<Map.Entry<Integer, Integer>> entries = index.days.entrySet().iterator(); entries.hasNext(); ) {
+				Map.Entry<Integer, Integer> entry = entries.next();
+				if (entry.getValue() < today) {
+					index.notified.remove(entry.getKey());
+					entries.remove();
+				}
+			}
+			write(index);
+		}
+	}
+
+	Index read() throws IOException {
+		if (!file.exists()) {
+			return new Index();
+		}
+		try (LockedFile locked = LockedFile.lock(lockFile)) {
+			return readLocked();
+		}
+	}
+
+	private Index readLocked() throws IOException {
+		Index index = new Index();
+		if (!file.exists()) {
+			return index;
+		}
+		for (String line : new String(Files.readAllBytes(file.toPath()), UTF8).split("\n")) {
+			String[] fields = line.trim().split(" ");
+			try {
+				if (fields.length == 3 && "+".equals(fields[0])) {
+					index.put(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+				} else if (fields.length == 2 && "-".equals(fields[0])) {
+					index.remove(Integer.parseInt(fields[1]));
+				} else if (fields.length == 3 && "!".equals(fields[0])) {
+					index.notified.put(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+				} else if (fields.length == 2 && "through".equals(fields[0])) {
+					// written by earlier versions, which dropped notified items instead of marking them
+				} else if (StringUtils.isNotBlank(line)) {
+					log.warn("Ignoring malformed line in embargo expiry index " + file.getAbsolutePath() + ": " + line);
+				}
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring malformed line in embargo expiry index " + file.getAbsolutePath() + ": " + line);
+			}
+		}
+		return index;
+	}
+
+	private void write(Index index) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<Integer, SortedSet<Integer>> bucket : index.buckets().entrySet()) {
+			for (Integer itemId : bucket.getValue()) {
+				out.write(("+ " + itemId + " " + bucket.getKey() + "\n").getBytes(UTF8));
+				if (index.isNotified(itemId)) {
+					out.write(("! " + itemId + " " + bucket.getKey() + "\n").getBytes(UTF8));
+				}
+			}
+		}
+		LockedFile.replace(file, out.toByteArray());
+	}
+
+	/**
+	 * @return the day (days since the epoch, UTC) of the given date
+	 */
+	static int toDay(Date date) {
+		return (int) Math.floor(date.getTime() / (double) MILLIS_PER_DAY);
+	}
+
+	static int today() {
+		return toDay(new Date());
+	}
+
+	private static Date toDate(int day) {
+		return new Date(day * MILLIS_PER_DAY);
+	}
+
+	/**
+	 * Contents of the index: the day of each item's lift date, and the day each item has had its notice for.
+	 */
+	static class Index {
+		private final Map<Integer, Integer> days = new HashMap<Integer, Integer>();
+		private final Map<Integer, Integer> notified = new HashMap<Integer, Integer>();
+
+		void put(int itemId, int day) {
+			days.put(itemId, day);
+			// a new lift date needs a new notice
+			if (!Integer.valueOf(day).equals(notified.get(itemId))) {
+				notified.remove(itemId);
+			}
+		}
+
+		void remove(int itemId) {
+			days.remove(itemId);
+			notified.remove(itemId);
+		}
+
+		/**
+		 * @return whether the item has had its notice for its current lift date
+		 */
+		boolean isNotified(int itemId) {
+			Integer day = days.get(itemId);
+			return day != null && day.equals(notified.get(itemId));
+		}
+
+		/**
+		 * @return the item IDs per day, in order of day
+		 */
+		TreeMap<Integer, SortedSet<Integer>> buckets() {
+			TreeMap<Integer, SortedSet<Integer>> buckets = new TreeMap<Integer, SortedSet<Integer>>();
+			for (Map.Entry<Integer, Integer> entry : days.entrySet()) {
+				SortedSet<Integer> bucket = buckets.get(entry.getValue());
+				if (bucket == null) {
+					bucket = new TreeSet<Integer>();
+					buckets.put(entry.getValue(), bucket);
+				}
+				bucket.add(entry.getKey());
+			}
+			return buckets;
+		}
+	}
+}
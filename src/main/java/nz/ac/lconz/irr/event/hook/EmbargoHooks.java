@@ -1,20 +1,27 @@
 package nz.ac.lconz.irr.event.hook;
 
+import nz.ac.lconz.irr.event.metrics.ConsumerMetrics;
+import nz.ac.lconz.irr.event.metrics.ConsumerStats;
+import nz.ac.lconz.irr.event.notify.NotificationEngine;
+import nz.ac.lconz.irr.event.notify.NotificationSubject;
 import nz.ac.lconz.irr.event.util.CurationHelper;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
 import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.DCDate;
 import org.dspace.content.Item;
 import org.dspace.content.MetadataSchema;
-import org.dspace.content.Metadatum;
 import org.dspace.core.*;
 import org.dspace.embargo.EmbargoManager;
 import org.dspace.eperson.EPerson;
-import org.dspace.eperson.Group;
-import org.dspace.handle.HandleManager;
 
 import javax.mail.MessagingException;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ IRRs
@@ -28,46 +35,137 @@ import java.sql.SQLException;
 @SuppressWarnings({"deprecation"})
 public class EmbargoHooks {
 	private static final Logger log = Logger.getLogger(EmbargoHooks.class);
+	private static final ConsumerStats stats = ConsumerMetrics.get(EmbargoHooks.class.getSimpleName());
 
-	// template for notification e-mail (embargo lifted)
-	private static final String EMAIL_TEMPLATE_NOTIFY_LIFTED = "notify_embargo_lift";
-	// template for notification e-mail (embargo set)
-	private static final String EMAIL_TEMPLATE_NOTIFY_SET = "notify_embargo_set";
-	// template for notification e-mail (embargo expired)
-	private static final String EMAIL_TEMPLATE_NOTIFY_EXPIRED = "notify_embargo";
-	// template for notification e-mail (embargo about to expire)
-	private static final String EMAIL_TEMPLATE_NOTIFY_ADVANCE_EXPIRY = "notify_embargo_advance";
-	// template for notification e-mail (permissions of embargoed item incorrect)
-	private static final String EMAIL_TEMPLATE_NOTIFY_PERMISSIONS = "notify_embargo_permissions";
-	// group id for group that receives notification e-mails
-	private static final String EMBARGO_NOTIFICATION_GROUP_ID = "embargo.notify.groupid";
+	// notification types, see NotificationType
+	private static final String NOTIFY_LIFTED = "embargo.lifted";
+	private static final String NOTIFY_SET = "embargo.set";
+	private static final String NOTIFY_EXPIRED = "embargo.expired";
+	private static final String NOTIFY_PERMISSIONS = "embargo.permissions";
+	private static final String NOTIFY_ADVANCE = "embargo.advance";
 
 	private static final String EMBARGO_SET_CURATION_QUEUE_NAME = "queue.embargo.set.name";
 	private static final String EMBARGO_LIFTED_CURATION_QUEUE_NAME = "queue.embargo.lifted.name";
 	private static final String EMBARGO_SET_CURATION_TASKS = "queue.embargo.set.tasks";
 	private static final String EMBARGO_LIFTED_CURATION_TASKS = "queue.embargo.lifted.tasks";
-	
+
+	// contexts whose side effects are held back until the caller releases them -> side effects waiting
+	private static final Map<Context, List<Runnable>> deferred = new WeakHashMap<Context, List<Runnable>>();
+
 	/**
-	 * Hooks to be run when an item has an embargo set *
+	 * Hold back the side effects of the hooks run with the given context (e-mails, changes to the
+	 * {@link EmbargoExpiryIndex} and curation tasks) until {@link #releaseSideEffects(Context)} is called, so that a
+	 * caller that commits several items at once can drop them with {@link #discardSideEffects(Context)} if the commit
+	 * doesn't happen.
+	 * @param context the DSpace context
+	 */
+	public static void deferSideEffects(Context context) {
+		synchronized (deferred) {
+			if (!deferred.containsKey(context)) {
+				deferred.put(context, new ArrayList<Runnable>());
+			}
+		}
+	}
+
+	/**
+	 * Carry out the side effects held back for the given context so far, eg once the context has been committed.
+	 * Further side effects are held back again.
+	 * @param context the DSpace context
+	 */
+	public static void releaseSideEffects(Context context) {
+		List<Runnable> pending;
+		synchronized (deferred) {
+			pending = deferred.get(context);
+			if (pending == null || pending.isEmpty()) {
+				return;
+			}
+			deferred.put(context, new ArrayList<Runnable>());
+		}
+		for (Runnable sideEffect : pending) {
+			sideEffect.run();
+		}
+	}
+
+	/**
+	 * Forget the side effects held back for the given context so far, eg because its changes have been rolled back.
+	 * @param context the DSpace context
 	 */
-	public static void atEmbargoSet(Context context, Item item, DCDate expiryDate) {
-		log.info(LogManager.getHeader(context, "thesis_embargo_set", "Thesis embargo set on item " + item.getID() + ", expires " + expiryDate.displayLocalDate(false, context.getCurrentLocale())));
+	public static void discardSideEffects(Context context) {
+		synchronized (deferred) {
+			if (deferred.containsKey(context)) {
+				deferred.put(context, new ArrayList<Runnable>());
+			}
+		}
+	}
+
+	private static void sideEffect(Context context, Runnable sideEffect) {
+		synchronized (deferred) {
+			List<Runnable> pending = deferred.get(context);
+			if (pending != null) {
+				pending.add(sideEffect);
+				return;
+			}
+		}
+		sideEffect.run();
+	}
 
-		notifyEmbargoSet(context, item, expiryDate);
+	/**
+	 * Hooks to be run when an item has an embargo set *
+	 */
+	public static void atEmbargoSet(final Context context, final Item item, final DCDate expiryDate) {
+		long start = stats.enter();
 		try {
-			queueForCuration(context, item, EMBARGO_SET_CURATION_TASKS, EMBARGO_SET_CURATION_QUEUE_NAME);
-		} catch (IOException e) {
-			log.warn("Caught exception while trying to queue curation task when embargo was set on item id=" + item.getID());
+			stats.eventSeen();
+			log.info(LogManager.getHeader(context, "thesis_embargo_set", "Thesis embargo set on item " + item.getID() + ", expires " + expiryDate.displayLocalDate(false, context.getCurrentLocale())));
+
+			notifyEmbargoSet(context, item, expiryDate);
+			sideEffect(context, new Runnable() {
+				public void run() {
+					try {
+						if (expiryDate.toDate() != null) {
+							EmbargoExpiryIndex.getDefault().put(item.getID(), expiryDate.toDate());
+						}
+					} catch (IOException e) {
+						stats.error();
+						log.warn("Cannot add item id=" + item.getID() + " to the embargo expiry index", e);
+					}
+					try {
+						queueForCuration(context, item, EMBARGO_SET_CURATION_TASKS, EMBARGO_SET_CURATION_QUEUE_NAME);
+					} catch (IOException e) {
+						stats.error();
+						log.warn("Caught exception while trying to queue curation task when embargo was set on item id=" + item.getID());
+					}
+				}
+			});
+		} finally {
+			stats.exitConsume(start);
 		}
 	}
 
-	public static void atEmbargoLifted(Context context, Item item) {
-		log.info(LogManager.getHeader(context, "thesis_embargo_lifted", "Thesis embargo lifted on item ") + item.getID());
-		notifyEmbargoLifted(context, item);
+	public static void atEmbargoLifted(final Context context, final Item item) {
+		long start = stats.enter();
 		try {
-			queueForCuration(context, item, EMBARGO_LIFTED_CURATION_TASKS, EMBARGO_LIFTED_CURATION_QUEUE_NAME);
-		} catch (IOException e) {
-			log.warn("Caught exception while trying to queue curation task when embargo was lifted on item id=" + item.getID());
+			stats.eventSeen();
+			log.info(LogManager.getHeader(context, "thesis_embargo_lifted", "Thesis embargo lifted on item ") + item.getID());
+			notifyEmbargoLifted(context, item);
+			sideEffect(context, new Runnable() {
+				public void run() {
+					try {
+						EmbargoExpiryIndex.getDefault().remove(item.getID());
+					} catch (IOException e) {
+						stats.error();
+						log.warn("Cannot remove item id=" + item.getID() + " from the embargo expiry index", e);
+					}
+					try {
+						queueForCuration(context, item, EMBARGO_LIFTED_CURATION_TASKS, EMBARGO_LIFTED_CURATION_QUEUE_NAME);
+					} catch (IOException e) {
+						stats.error();
+						log.warn("Caught exception while trying to queue curation task when embargo was lifted on item id=" + item.getID());
+					}
+				}
+			});
+		} finally {
+			stats.exitConsume(start);
 		}
 	}
 
@@ -80,17 +178,58 @@ public class EmbargoHooks {
 		helper.initQueueName(queueProperty);
 		helper.addToQueue(item);
 		helper.queueForCuration(context);
+		stats.itemsQueued(1);
 	}
 
 	public static void atEmbargoExpired(Context context, Item item, DCDate liftDate) {
-		notifyEmbargoExpired(context, item, liftDate);
+		long start = stats.enter();
+		try {
+			stats.eventSeen();
+			notifyEmbargoExpired(context, item, liftDate);
+		} finally {
+			stats.exitConsume(start);
+		}
 	}
 
 	public static void atPermissionsIncorrect(Context context, Item item) {
+		long start = stats.enter();
 		try {
+			stats.eventSeen();
 			notifyPermissionsIncorrect(context, item);
 		} catch (SQLException e) {
+			stats.error();
 			log.warn("Cannot notify about incorrect permissions on item id=" + item.getID(), e);
+		} finally {
+			stats.exitConsume(start);
+		}
+	}
+
+	/**
+	 * Hook to be run a number of days before an item's embargo is lifted, see {@link EmbargoExpiryIndex}.
+	 */
+	public static void atEmbargoAboutToExpire(Context context, Item item, DCDate liftDate) {
+		long start = stats.enter();
+		try {
+			stats.eventSeen();
+			NotificationSubject subject = new NotificationSubject(context, item);
+			subject.setValue("date", liftDate.toString());
+			notify(NOTIFY_ADVANCE, subject, "warning about embargo about to expire");
+		} finally {
+			stats.exitConsume(start);
+		}
+	}
+
+	/**
+	 * As {@link #atPermissionsIncorrect(Context, Item)}, for callers that already know the lift date (eg the
+	 * {@link EmbargoPermissionAuditor}), so that the embargo terms don't need to be looked up again.
+	 */
+	public static void atPermissionsIncorrect(Context context, Item item, DCDate liftDate) {
+		long start = stats.enter();
+		try {
+			stats.eventSeen();
+			notifyPermissionsIncorrect(context, item, String.valueOf(liftDate));
+		} finally {
+			stats.exitConsume(start);
 		}
 	}
 
@@ -118,53 +257,11 @@ public class EmbargoHooks {
 		provmessage.append(DCDate.getCurrent());
 		provmessage.append(" (UTC)\n");
 		item.addMetadata(MetadataSchema.DC_SCHEMA, "description", "provenance", "en_NZ", provmessage.toString());
+		MetadataProjection.invalidate(context, item);
 
-		// notify thesis administrators
-		EPerson[] recipients;
-		try {
-			recipients = findNotificationRecipients(context);
-		} catch (SQLException sqle) {
-			log.warn("Can't notify thesis admins of lifted embargo.", sqle);
-			return;
-		}
-		// Send email to thesis administrators
-
-		try {
-			// Get some basic metadata
-			Metadatum titles[] = item.getMetadata(MetadataSchema.DC_SCHEMA, "title", null, Item.ANY);
-			Metadatum authors[] = item.getMetadata(MetadataSchema.DC_SCHEMA, "contributor", "author", Item.ANY);
-
-			String title = titles.length > 0 ? titles[0].value : "no title";
-			String author = authors.length > 0 ? authors[0].value : "no authors";
-
-			// Send email
-			Email emailmsg = Email.getEmail(I18nUtil.getEmailFilename(context.getCurrentLocale(), EMAIL_TEMPLATE_NOTIFY_SET));
-			for (EPerson recipient : recipients) {
-				emailmsg.addRecipient(recipient.getEmail());
-			}
-			String itemIdentifier = "[workflow item]";
-			String url = "the item's workflow screen";
-			if (item.getHandle() != null) {
-				itemIdentifier = item.getHandle();
-				try {
-					String link = HandleManager.resolveToURL(context, itemIdentifier);
-					if (link != null)
-						url = link;
-				} catch (SQLException ex) {
-					log.warn("can't determine url to item from handle " + itemIdentifier, ex);
-				}
-			}
-			emailmsg.addArgument(itemIdentifier);
-			emailmsg.addArgument(title);
-			emailmsg.addArgument(author);
-			emailmsg.addArgument(name);
-			emailmsg.addArgument(email);
-			emailmsg.addArgument(liftDate.toString());
-			emailmsg.addArgument(url);
-			emailmsg.send();
-		} catch (IOException | MessagingException ioe) {
-			log.warn("Problem sending notification email when setting embargo", ioe);
-		}
+		NotificationSubject subject = new NotificationSubject(context, item);
+		subject.setValue("date", liftDate.toString());
+		notify(NOTIFY_SET, subject, "setting embargo");
 	}
 
 	private static void notifyEmbargoLifted(Context context, Item item) {
@@ -188,148 +285,49 @@ public class EmbargoHooks {
 		provmessage.append(DCDate.getCurrent());
 		provmessage.append(" (UTC)\n");
 		item.addMetadata(MetadataSchema.DC_SCHEMA, "description", "provenance", "en_NZ", provmessage.toString());
+		MetadataProjection.invalidate(context, item);
 
-		// notify the thesis admins
-		EPerson[] recipients;
-		try {
-			recipients = findNotificationRecipients(context);
-		} catch (SQLException sqle) {
-			log.warn("Can't notify thesis admins of lifted embargo.", sqle);
-			return;
-		}
-		// Send email to thesis administrators
-		try {
-			// Get some basic metadata
-			Metadatum[] titles = item.getMetadata(MetadataSchema.DC_SCHEMA, "title", null, Item.ANY);
-			Metadatum[] authors = item.getMetadata(MetadataSchema.DC_SCHEMA, "contributor", "author", Item.ANY);
-			String title = titles.length > 0 ? titles[0].value : "no title";
-			String author = authors.length > 0 ? authors[0].value : "no authors";
-			// Send email
-			Email emailmsg = Email.getEmail(I18nUtil.getEmailFilename(context.getCurrentLocale(), EMAIL_TEMPLATE_NOTIFY_LIFTED));
-			for (EPerson recipient : recipients) {
-				emailmsg.addRecipient(recipient.getEmail());
-			}
-			String itemIdentifier = "[workflow item]";
-			String url = "the item's workflow screen";
-			if (item.getHandle() != null) {
-				itemIdentifier = item.getHandle();
-				try {
-					String link = HandleManager.resolveToURL(context, itemIdentifier);
-					if (link != null)
-						url = link;
-				} catch (SQLException ex) {
-					log.warn("can't determine url to item from handle " + itemIdentifier, ex);
-				}
-			}
-			emailmsg.addArgument(itemIdentifier);
-			emailmsg.addArgument(title);
-			emailmsg.addArgument(author);
-			emailmsg.addArgument(name);
-			emailmsg.addArgument(email);
-			emailmsg.addArgument(url);
-			emailmsg.send();
-		} catch (IOException | MessagingException ioe) {
-			log.warn("Problem sending notification email when lifting embargo", ioe);
-		}
+		NotificationSubject subject = new NotificationSubject(context, item);
+		subject.setValue("date", DCDate.getCurrent().toString());
+		notify(NOTIFY_LIFTED, subject, "lifting embargo");
 	}
 
 	private static void notifyEmbargoExpired(Context context, Item item, DCDate liftDate) {
-		// notify the thesis admins
-		EPerson[] recipients;
+		NotificationSubject subject = new NotificationSubject(context, item);
+		subject.setValue("date", liftDate.toString());
+		notify(NOTIFY_EXPIRED, subject, "detecting expired embargo");
+	}
+
+	private static void notifyPermissionsIncorrect(Context context, Item item) throws SQLException {
+		String date = null;
 		try {
-			recipients = findNotificationRecipients(context);
-		} catch (SQLException sqle) {
-			log.warn("Can't notify thesis admins of lifted embargo.", sqle);
-			return;
+			date = String.valueOf(EmbargoManager.getEmbargoTermsAsDate(context, item));
+		} catch (AuthorizeException | IOException e) {
+			log.warn("Cannot determine embargo date of item id=" + item.getID(), e);
 		}
-		// Send email to thesis administrators
-		try {
-			// Get some basic metadata
-			Metadatum[] titles = item.getMetadata(MetadataSchema.DC_SCHEMA, "title", null, Item.ANY);
-			Metadatum[] authors = item.getMetadata(MetadataSchema.DC_SCHEMA, "contributor", "author", Item.ANY);
-			String title = titles.length > 0 ? titles[0].value : "no title";
-			String author = authors.length > 0 ? authors[0].value : "no authors";
-			// Send email
-			Email emailmsg = Email.getEmail(I18nUtil.getEmailFilename(context.getCurrentLocale(), EMAIL_TEMPLATE_NOTIFY_EXPIRED));
-			for (EPerson recipient : recipients) {
-				emailmsg.addRecipient(recipient.getEmail());
-			}
-
-			String itemIdentifier = "[workflow item]";
-			String url = "the item's workflow screen";
-			if (item.getHandle() != null) {
-				itemIdentifier = item.getHandle();
-				try {
-					String link = HandleManager.resolveToURL(context, itemIdentifier);
-					if (link != null)
-						url = link;
-				} catch (SQLException ex) {
-					log.warn("can't determine url to item from handle " + itemIdentifier, ex);
-				}
-			}
-			String collectionName = item.getOwningCollection().getName();
+		notifyPermissionsIncorrect(context, item, date);
+	}
 
-			emailmsg.addArgument(itemIdentifier);
-			emailmsg.addArgument(title);
-			emailmsg.addArgument(author);
-			emailmsg.addArgument(liftDate.toString());
-			emailmsg.addArgument(url);
-			emailmsg.addArgument(collectionName);
-			emailmsg.send();
-		} catch (IOException | MessagingException | SQLException ioe) {
-			log.warn("Problem sending notification email when detecting expired embargo", ioe);
+	private static void notifyPermissionsIncorrect(Context context, Item item, String date) {
+		NotificationSubject subject = new NotificationSubject(context, item);
+		if (date != null) {
+			subject.setValue("date", date);
 		}
+		notify(NOTIFY_PERMISSIONS, subject, "warning about policies of embargoed item");
 	}
 
-	private static void notifyPermissionsIncorrect(Context context, Item item) throws SQLException {
-		EPerson[] recipients = findNotificationRecipients(context);
-		// Send email to thesis administrators
-		try {
-			// Get some basic metadata
-			Metadatum[] titles = item.getMetadata(MetadataSchema.DC_SCHEMA, "title", null, Item.ANY);
-			Metadatum[] authors = item.getMetadata(MetadataSchema.DC_SCHEMA, "contributor", "author", Item.ANY);
-			String title = titles.length > 0 ? titles[0].value : "no title";
-			String author = authors.length > 0 ? authors[0].value : "no authors";
-			// Send email
-			Email emailmsg = Email.getEmail(I18nUtil.getEmailFilename(context.getCurrentLocale(), EMAIL_TEMPLATE_NOTIFY_PERMISSIONS));
-			for (EPerson recipient : recipients) {
-				emailmsg.addRecipient(recipient.getEmail());
-			}
-			String itemIdentifier = "[workflow item]";
-			String url = "the item's workflow screen";
-			if (item.getHandle() != null) {
-				itemIdentifier = item.getHandle();
+	private static void notify(final String type, final NotificationSubject subject, final String action) {
+		sideEffect(subject.getContext(), new Runnable() {
+			public void run() {
 				try {
-					String link = HandleManager.resolveToURL(context, itemIdentifier);
-					if (link != null)
-						url = link;
-				} catch (SQLException ex) {
-					log.warn("can't determine url to item from handle " + itemIdentifier, ex);
+					if (NotificationEngine.send(subject.getContext(), type, subject)) {
+						stats.mailSent();
+					}
+				} catch (IOException | MessagingException | SQLException e) {
+					stats.error();
+					log.warn("Problem sending notification email when " + action, e);
 				}
 			}
-			emailmsg.addArgument(itemIdentifier);
-			emailmsg.addArgument(title);
-			emailmsg.addArgument(author);
-			DCDate liftDate = EmbargoManager.getEmbargoTermsAsDate(context, item);
-			emailmsg.addArgument(liftDate);
-			emailmsg.addArgument(url);
-			emailmsg.send();
-		} catch (Exception ex) {
-			log.warn("Problem sending notification email when warning about policies of embargoed item", ex);
-		}
-	}
-
-	private static EPerson[] findNotificationRecipients(Context context) throws SQLException {
-		EPerson[] emptyArray = new EPerson[0];
-		if (ConfigurationManager.getProperty("lconz-event", EMBARGO_NOTIFICATION_GROUP_ID) == null) {
-			return emptyArray;
-		}
-		int recipientsGroupID = ConfigurationManager.getIntProperty("lconz-event", EMBARGO_NOTIFICATION_GROUP_ID);
-		Group recipientGroup = Group.find(context, recipientsGroupID);
-		if (recipientGroup == null) {
-			return emptyArray;
-		}
-		// get a list of all epeople in group (or any subgroups)
-		return Group.allMembers(context, recipientGroup);
+		});
 	}
 }
@@ -0,0 +1,355 @@
+package nz.ac.lconz.irr.event.hook;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.DCDate;
+import org.dspace.content.Item;
+import org.dspace.content.ItemIterator;
+import org.dspace.content.Metadatum;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.embargo.EmbargoManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line tool that lifts all embargoes that are due, spread across several worker threads, and runs the
+ * {@link EmbargoHooks#atEmbargoLifted(Context, Item)} hook for each item.
+ *
+ * Each worker uses its own DSpace context and commits after every batch of items. The side effects of the hook
+ * (e-mails, curation tasks, changes to the {@link EmbargoExpiryIndex}) are held back until the batch has been
+ * committed, so that when an item fails and the rest of its batch is rolled back and retried, nothing is sent or
+ * queued twice. The IDs of the items in each
+ * committed batch are appended to a checkpoint file; when the run is interrupted, running the tool again with -r
+ * skips the items that have already been done. A run without -r starts with a fresh checkpoint (discarding that of
+ * any earlier run), and the checkpoint file is removed after a run without failures. Dry runs leave it alone.
+ * Embargo notifications collected for a digest (see {@link EmbargoDigest}) are sent at the end of the run.
+ *
+ * Run via [dspace]/bin/dspace dsrun nz.ac.lconz.irr.event.hook.EmbargoLiftRunner [-w workers] [-b batch size]
+ * [-c checkpoint file] [-r] [-n]
+ *
+ * Defaults for the options are taken from embargo.lift.workers (default: 4), embargo.lift.batch-size (default: 50) and
+ * embargo.lift.checkpoint (default: [dspace]/var/lconz-embargo-lift.checkpoint) in lconz-event.cfg.
+ */
+public class EmbargoLiftRunner {
+	private static final Logger log = Logger.getLogger(EmbargoLiftRunner.class);
+
+	private final int workerCount;
+	private final int batchSize;
+	private final Checkpoint checkpoint;
+	private final boolean dryRun;
+
+	private final BlockingQueue<Integer> due = new LinkedBlockingQueue<Integer>();
+	private final AtomicInteger lifted = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	public EmbargoLiftRunner(int workerCount, int batchSize, Checkpoint checkpoint, boolean dryRun) {
+		this.workerCount = workerCount;
+		this.batchSize = batchSize;
+		this.checkpoint = checkpoint;
+		this.dryRun = dryRun;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("w", "workers", true, "number of worker threads");
+		options.addOption("b", "batch-size", true, "number of items per commit");
+		options.addOption("c", "checkpoint", true, "checkpoint file");
+		options.addOption("r", "resume", false, "skip items recorded in the checkpoint file by an earlier run");
+		options.addOption("n", "dry-run", false, "only list the items that are due");
+		options.addOption("h", "help", false, "print this help message");
+
+		CommandLine line;
+		try {
+			line = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("EmbargoLiftRunner", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("EmbargoLiftRunner", options);
+			return;
+		}
+
+		EventConsumerConfig config = EventConsumerConfig.current();
+		int workers = Integer.parseInt(line.getOptionValue("w", String.valueOf(config.getIntProperty("embargo.lift.workers", 4))));
+		int batchSize = Integer.parseInt(line.getOptionValue("b", String.valueOf(config.getIntProperty("embargo.lift.batch-size", 50))));
+		String defaultCheckpoint = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-embargo-lift.checkpoint";
+		File checkpointFile = new File(line.getOptionValue("c", config.getProperty("embargo.lift.checkpoint", defaultCheckpoint)));
+
+		Checkpoint checkpoint = new Checkpoint(checkpointFile, line.hasOption("r"));
+		EmbargoLiftRunner runner = new EmbargoLiftRunner(Math.max(1, workers), Math.max(1, batchSize), checkpoint, line.hasOption("n"));
+		boolean success = runner.run();
+		System.exit(success ? 0 : 1);
+	}
+
+	/**
+	 * Find the items that are due and lift their embargoes.
+	 * @return true if all embargoes were lifted successfully
+	 * @throws SQLException if the items that are due cannot be determined
+	 * @throws AuthorizeException if the items that are due cannot be determined
+	 * @throws IOException if the checkpoint file cannot be written
+	 */
+	public boolean run() throws SQLException, AuthorizeException, IOException {
+		long start = System.currentTimeMillis();
+		int skipped = findDueItems();
+		int total = due.size();
+		long found = System.currentTimeMillis();
+		System.out.println("Found " + total + " items with embargoes due to be lifted (" + skipped + " already done in an earlier run) in " + (found - start) + "ms");
+		if (dryRun) {
+			for (Integer itemId : due) {
+				System.out.println("Item id=" + itemId);
+			}
+			return true;
+		}
+
+		checkpoint.start();
+		List<Thread> threads = new ArrayList<Thread>();
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < Math.min(workerCount, Math.max(total, 1)); i++) {
+			Worker worker = new Worker();
+			Thread thread = new Thread(worker, "embargo-lift-" + (i + 1));
+			workers.add(worker);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		checkpoint.close();
+		EmbargoDigest.flush();
+
+		long elapsed = Math.max(System.currentTimeMillis() - found, 1);
+		System.out.println("Lifted " + lifted.get() + " of " + total + " embargoes in " + elapsed + "ms using " + threads.size() + " workers ("
+				+ String.format("%.1f", lifted.get() * 1000.0 / elapsed) + " items/s); " + failed.get() + " failed");
+		for (int i = 0; i < workers.size(); i++) {
+			Worker worker = workers.get(i);
+			System.out.println("  worker " + (i + 1) + ": " + worker.done + " lifted, " + worker.failures + " failed, " + worker.commits + " commits");
+		}
+		if (failed.get() == 0 && due.isEmpty()) {
+			checkpoint.delete();
+			return true;
+		}
+		System.out.println("Run again with -r to skip the items that were done in this run (recorded in " + checkpoint.getFile().getAbsolutePath() + ")");
+		return false;
+	}
+
+	private int findDueItems() throws SQLException, AuthorizeException, IOException {
+		String liftField = ConfigurationManager.getProperty("embargo.field.lift");
+		if (StringUtils.isBlank(liftField)) {
+			throw new IllegalStateException("No embargo lift field configured (embargo.field.lift in dspace.cfg)");
+		}
+		String[] components = liftField.split("\\.");
+		String qualifier = components.length > 2 ? components[2] : null;
+
+		Date now = new Date();
+		List<Integer> ids = new ArrayList<Integer>();
+		int skipped = 0;
+		Context context = new Context();
+		try {
+			context.turnOffAuthorisationSystem();
+			ItemIterator items = Item.findByMetadataField(context, components[0], components[1], qualifier, Item.ANY);
+			try {
+				while (items.hasNext()) {
+					Item item = items.next();
+					Metadatum[] liftDates = item.getMetadata(components[0], components[1], qualifier, Item.ANY);
+					if (liftDates.length > 0 && liftDates[0].value != null) {
+						Date liftDate = new DCDate(liftDates[0].value).toDate();
+						if (liftDate != null && !liftDate.after(now)) {
+							if (checkpoint.isDone(item.getID())) {
+								skipped++;
+							} else {
+								ids.add(item.getID());
+							}
+						}
+					}
+					item.decache();
+				}
+			} finally {
+				items.close();
+			}
+		} finally {
+			context.abort();
+		}
+		Collections.sort(ids);
+		due.addAll(ids);
+		return skipped;
+	}
+
+	private class Worker implements Runnable {
+		private int done = 0;
+		private int failures = 0;
+		private int commits = 0;
+
+		public void run() {
+			Context context = null;
+			List<Integer> batch = new ArrayList<Integer>();
+			try {
+				context = newContext();
+				Integer itemId;
+				while ((itemId = due.poll()) != null) {
+					try {
+						Item item = Item.find(context, itemId);
+						if (item == null) {
+							log.warn("Item id=" + itemId + " has gone away, skipping");
+							continue;
+						}
+						EmbargoManager.liftEmbargo(context, item);
+						EmbargoHooks.atEmbargoLifted(context, item);
+						item.update();
+						batch.add(itemId);
+					} catch (Exception e) {
+						log.error("Cannot lift embargo on item id=" + itemId + ", discarding uncommitted changes", e);
+						failures++;
+						failed.incrementAndGet();
+						// the rest of the uncommitted batch was fine -> give it another go; none of its side effects
+						// have happened yet
+						EmbargoHooks.discardSideEffects(context);
+						context.abort();
+						due.addAll(batch);
+						batch.clear();
+						context = newContext();
+						continue;
+					}
+					if (batch.size() >= batchSize) {
+						commit(context, batch);
+					}
+				}
+				commit(context, batch);
+			} catch (SQLException | IOException e) {
+				log.error("Embargo lift worker stopped because of an error; " + batch.size() + " uncommitted items will be retried on the next run", e);
+				failures += batch.size();
+				failed.addAndGet(batch.size());
+			} finally {
+				if (context != null && context.isValid()) {
+					EmbargoHooks.discardSideEffects(context);
+					context.abort();
+				}
+			}
+		}
+
+		private void commit(Context context, List<Integer> batch) throws SQLException, IOException {
+			if (batch.isEmpty()) {
+				return;
+			}
+			context.commit();
+			EmbargoHooks.releaseSideEffects(context);
+			context.clearCache();
+			MetadataProjection.clear(context);
+			checkpoint.markDone(batch);
+			commits++;
+			done += batch.size();
+			lifted.addAndGet(batch.size());
+			batch.clear();
+		}
+
+		private Context newContext() throws SQLException {
+			Context context = new Context();
+			context.turnOffAuthorisationSystem();
+			EmbargoHooks.deferSideEffects(context);
+			return context;
+		}
+	}
+
+	/**
+	 * Record of the items that have been processed, appended to after every commit.
+	 */
+	public static class Checkpoint {
+		private final File file;
+		private final boolean resume;
+		private final Set<Integer> done = new HashSet<Integer>();
+		private PrintWriter writer;
+
+		/**
+		 * @param file the checkpoint file
+		 * @param resume whether to skip the items recorded in the file by an earlier run
+		 * @throws IOException if the file cannot be read
+		 */
+		public Checkpoint(File file, boolean resume) throws IOException {
+			this.file = file;
+			this.resume = resume;
+			if (resume && file.exists()) {
+				try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (StringUtils.isNotBlank(line)) {
+							done.add(Integer.valueOf(line.trim()));
+						}
+					}
+				}
+			}
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Start recording; unless resuming, the checkpoint of any earlier run is discarded first.
+		 * @throws IOException if the file cannot be removed or opened
+		 */
+		public synchronized void start() throws IOException {
+			if (!resume && file.exists() && !file.delete()) {
+				throw new IOException("Cannot remove checkpoint file " + file.getAbsolutePath() + " left by an earlier run");
+			}
+			writer = new PrintWriter(new FileWriter(file, true));
+		}
+
+		public boolean isDone(int itemId) {
+			return done.contains(itemId);
+		}
+
+		public synchronized void markDone(List<Integer> itemIds) throws IOException {
+			for (Integer itemId : itemIds) {
+				writer.println(itemId);
+			}
+			writer.flush();
+			if (writer.checkError()) {
+				throw new IOException("Cannot write to checkpoint file " + file.getAbsolutePath());
+			}
+		}
+
+		public synchronized void close() {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+
+		public synchronized void delete() {
+			close();
+			if (file.exists() && !file.delete()) {
+				log.warn("Cannot remove checkpoint file " + file.getAbsolutePath());
+			}
+		}
+	}
+}
@@ -0,0 +1,423 @@
+package nz.ac.lconz.irr.event.hook;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeManager;
+import org.dspace.authorize.ResourcePolicy;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.content.DCDate;
+import org.dspace.content.Item;
+import org.dspace.content.MetadataField;
+import org.dspace.content.MetadataSchema;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.eperson.Group;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line tool that checks the bitstream READ policies of all items under embargo and runs the
+ * {@link EmbargoHooks#atPermissionsIncorrect(Context, Item, DCDate)} hook for each item whose files can be read
+ * anonymously before the embargo is lifted.
+ *
+ * Embargoed items are read page by page, ordered by item ID and starting after the last item of the previous page
+ * (rather than with an offset), together with their lift dates, so memory use doesn't depend on the size of the
+ * repository. The items of each page are checked on a fork/join pool, each task with its own DSpace context, and the
+ * items with incorrect permissions are reported once the page is done; with a digest switched on for
+ * notify_embargo_permissions (see {@link EmbargoDigest}), they are sent as one e-mail at the end of the run.
+ *
+ * Progress is kept in a checkpoint file after every page; an interrupted run is resumed where it stopped. With -i, only
+ * items modified since the start of the last complete run are checked. Note that changing a policy doesn't always
+ * change the item's last modified date, so incremental runs should be combined with an occasional full run.
+ *
+ * Run via [dspace]/bin/dspace dsrun nz.ac.lconz.irr.event.hook.EmbargoPermissionAuditor [-i] [-f] [-p parallelism]
+ * [-s page size] [-c checkpoint file] [-n]
+ *
+ * Defaults for the options are taken from embargo.audit.parallelism (default: number of processors),
+ * embargo.audit.page-size (default: 1000) and embargo.audit.checkpoint (default:
+ * [dspace]/var/lconz-embargo-audit.checkpoint) in lconz-event.cfg; the bundles to check are given in
+ * embargo.audit.bundles (default: ORIGINAL).
+ */
+public class EmbargoPermissionAuditor {
+	private static final Logger log = Logger.getLogger(EmbargoPermissionAuditor.class);
+
+	// number of items checked by one task, with one DSpace context
+	private static final int ITEMS_PER_TASK = 50;
+
+	private final ForkJoinPool pool;
+	private final int pageSize;
+	private final Checkpoint checkpoint;
+	private final boolean incremental;
+	private final boolean dryRun;
+	private final List<String> bundles;
+
+	private final AtomicInteger checked = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private int reported = 0;
+
+	public EmbargoPermissionAuditor(int parallelism, int pageSize, Checkpoint checkpoint, boolean incremental, boolean dryRun) {
+		this.pool = new ForkJoinPool(parallelism);
+		this.pageSize = pageSize;
+		this.checkpoint = checkpoint;
+		this.incremental = incremental;
+		this.dryRun = dryRun;
+		List<String> configured = EventConsumerConfig.current().getList("embargo.audit.bundles");
+		this.bundles = configured.isEmpty() ? Collections.singletonList(Constants.CONTENT_BUNDLE_NAME) : configured;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("i", "incremental", false, "only check items modified since the last complete run");
+		options.addOption("f", "fresh", false, "start from the beginning even if the last run was interrupted");
+		options.addOption("p", "parallelism", true, "number of items checked at the same time");
+		options.addOption("s", "page-size", true, "number of items read from the database at a time");
+		options.addOption("c", "checkpoint", true, "checkpoint file");
+		options.addOption("n", "dry-run", false, "only list the items with incorrect permissions, don't run the hook");
+		options.addOption("h", "help", false, "print this help message");
+
+		CommandLine line;
+		try {
+			line = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("EmbargoPermissionAuditor", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("EmbargoPermissionAuditor", options);
+			return;
+		}
+
+		EventConsumerConfig config = EventConsumerConfig.current();
+		int parallelism = Integer.parseInt(line.getOptionValue("p", String.valueOf(config.getIntProperty("embargo.audit.parallelism", Runtime.getRuntime().availableProcessors()))));
+		int pageSize = Integer.parseInt(line.getOptionValue("s", String.valueOf(config.getIntProperty("embargo.audit.page-size", 1000))));
+		String defaultCheckpoint = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-embargo-audit.checkpoint";
+		File checkpointFile = new File(line.getOptionValue("c", config.getProperty("embargo.audit.checkpoint", defaultCheckpoint)));
+
+		Checkpoint checkpoint = new Checkpoint(checkpointFile);
+		if (line.hasOption("f")) {
+			checkpoint.discardRun();
+		}
+		EmbargoPermissionAuditor auditor = new EmbargoPermissionAuditor(Math.max(1, parallelism), Math.max(1, pageSize), checkpoint,
+				line.hasOption("i"), line.hasOption("n"));
+		boolean success = auditor.run();
+		System.exit(success ? 0 : 1);
+	}
+
+	/**
+	 * Check all embargoed items (or those modified since the last complete run) and report those with incorrect
+	 * permissions.
+	 * @return true if all items could be checked
+	 * @throws SQLException if the embargoed items cannot be read
+	 * @throws IOException if the checkpoint file cannot be written
+	 */
+	public boolean run() throws SQLException, IOException {
+		long start = System.currentTimeMillis();
+		int liftFieldId;
+		int pages = 0;
+		Context context = new Context();
+		try {
+			context.turnOffAuthorisationSystem();
+			liftFieldId = findLiftFieldId(context);
+			if (!checkpoint.isRunning()) {
+				checkpoint.startRun(start, incremental ? checkpoint.getLastComplete() : 0L);
+			} else {
+				System.out.println("Resuming the run started " + new Date(checkpoint.getRunStarted()) + " after item id=" + checkpoint.getLastItemId());
+			}
+			if (checkpoint.getSince() > 0) {
+				System.out.println("Checking items modified since " + new Date(checkpoint.getSince()));
+			}
+
+			Date now = new Date();
+			List<Candidate> page;
+			while (!(page = readPage(context, liftFieldId, checkpoint.getLastItemId(), checkpoint.getSince())).isEmpty()) {
+				List<Candidate> embargoed = new ArrayList<Candidate>();
+				for (Candidate candidate : page) {
+					Date liftDate = candidate.liftDate.toDate();
+					if (liftDate != null && liftDate.after(now)) {
+						embargoed.add(candidate);
+					}
+				}
+				List<Candidate> incorrect = embargoed.isEmpty() ? embargoed : pool.invoke(new CheckTask(embargoed, 0, embargoed.size()));
+				report(context, incorrect);
+				checkpoint.update(page.get(page.size() - 1).itemId);
+				pages++;
+			}
+		} finally {
+			pool.shutdown();
+			context.abort();
+		}
+		EmbargoDigest.flush();
+
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		System.out.println("Checked " + checked.get() + " embargoed items in " + pages + " pages in " + elapsed + "ms ("
+				+ String.format("%.1f", checked.get() * 1000.0 / elapsed) + " items/s); " + reported + " with incorrect permissions, "
+				+ failed.get() + " could not be checked");
+		if (failed.get() > 0 || dryRun) {
+			// check everything again next time rather than losing track of the failed (or unreported) items
+			checkpoint.discardRun();
+			return failed.get() == 0;
+		}
+		checkpoint.completeRun();
+		return true;
+	}
+
+	private int findLiftFieldId(Context context) throws SQLException {
+		String liftField = ConfigurationManager.getProperty("embargo.field.lift");
+		if (StringUtils.isBlank(liftField)) {
+			throw new IllegalStateException("No embargo lift field configured (embargo.field.lift in dspace.cfg)");
+		}
+		String[] components = liftField.split("\\.");
+		MetadataSchema schema = MetadataSchema.find(context, components[0]);
+		MetadataField field = schema != null ? MetadataField.findByElement(context, schema.getSchemaID(), components[1], components.length > 2 ? components[2] : null) : null;
+		if (field == null) {
+			throw new IllegalStateException("Embargo lift field " + liftField + " doesn't exist in the metadata registry");
+		}
+		return field.getFieldID();
+	}
+
+	/**
+	 * @return the next page of archived items with a lift date, ordered by ID, starting after the given item
+	 */
+	private List<Candidate> readPage(Context context, int liftFieldId, int afterItemId, long modifiedSince) throws SQLException {
+		String query = "SELECT i.item_id, mv.text_value FROM item i JOIN metadatavalue mv ON mv.resource_id = i.item_id"
+				+ " AND mv.resource_type_id = " + Constants.ITEM + " AND mv.metadata_field_id = ?"
+				+ " WHERE i.item_id > ? AND i.in_archive = '1' AND i.withdrawn = '0'"
+				+ (modifiedSince > 0 ? " AND i.last_modified > ?" : "")
+				+ " ORDER BY i.item_id";
+		if (DatabaseManager.isOracle()) {
+			query = "SELECT * FROM (" + query + ") WHERE ROWNUM <= ?";
+		} else {
+			query += " LIMIT ?";
+		}
+		Object[] parameters = modifiedSince > 0
+				? new Object[] { liftFieldId, afterItemId, new Timestamp(modifiedSince), pageSize }
+				: new Object[] { liftFieldId, afterItemId, pageSize };
+
+		List<Candidate> page = new ArrayList<Candidate>();
+		TableRowIterator rows = DatabaseManager.query(context, query, parameters);
+		try {
+			while (rows.hasNext()) {
+				TableRow row = rows.next();
+				int itemId = row.getIntColumn("item_id");
+				// only the first lift date of each item counts
+				if (!page.isEmpty() && page.get(page.size() - 1).itemId == itemId) {
+					continue;
+				}
+				page.add(new Candidate(itemId, new DCDate(row.getStringColumn("text_value"))));
+			}
+		} finally {
+			rows.close();
+		}
+		return page;
+	}
+
+	private void report(Context context, List<Candidate> incorrect) throws SQLException {
+		for (Candidate candidate : incorrect) {
+			reported++;
+			if (dryRun) {
+				System.out.println("Item id=" + candidate.itemId + " can be read before its embargo is lifted on " + candidate.liftDate);
+				continue;
+			}
+			Item item = Item.find(context, candidate.itemId);
+			if (item != null) {
+				EmbargoHooks.atPermissionsIncorrect(context, item, candidate.liftDate);
+			}
+		}
+		context.clearCache();
+		MetadataProjection.clear(context);
+	}
+
+	/**
+	 * @return whether any file in the checked bundles can be read anonymously before the lift date
+	 */
+	private boolean canBeReadEarly(Context context, Item item, Date liftDate) throws SQLException {
+		for (String bundleName : bundles) {
+			for (Bundle bundle : item.getBundles(bundleName)) {
+				for (Bitstream bitstream : bundle.getBitstreams()) {
+					for (ResourcePolicy policy : AuthorizeManager.getPoliciesActionFilter(context, bitstream, Constants.READ)) {
+						if (policy.getGroupID() == Group.ANONYMOUS_ID && (policy.getStartDate() == null || policy.getStartDate().before(liftDate))) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks a range of the items of a page, splitting it up until there are few enough items for one context.
+	 */
+	private class CheckTask extends RecursiveTask<List<Candidate>> {
+		private final List<Candidate> candidates;
+		private final int from;
+		private final int to;
+
+		CheckTask(List<Candidate> candidates, int from, int to) {
+			this.candidates = candidates;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<Candidate> compute() {
+			if (to - from > ITEMS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				CheckTask first = new CheckTask(candidates, from, middle);
+				first.fork();
+				List<Candidate> second = new CheckTask(candidates, middle, to).compute();
+				List<Candidate> result = first.join();
+				result.addAll(second);
+				return result;
+			}
+
+			List<Candidate> incorrect = new ArrayList<Candidate>();
+			Context context = null;
+			try {
+				context = new Context();
+				context.turnOffAuthorisationSystem();
+				for (Candidate candidate : candidates.subList(from, to)) {
+					try {
+						Item item = Item.find(context, candidate.itemId);
+						if (item != null && canBeReadEarly(context, item, candidate.liftDate.toDate())) {
+							incorrect.add(candidate);
+						}
+						checked.incrementAndGet();
+					} catch (SQLException e) {
+						log.error("Cannot check permissions of item id=" + candidate.itemId, e);
+						failed.incrementAndGet();
+					}
+				}
+			} catch (SQLException e) {
+				log.error("Cannot check permissions of " + (to - from) + " items", e);
+				failed.addAndGet(to - from);
+			} finally {
+				if (context != null && context.isValid()) {
+					context.abort();
+				}
+			}
+			return incorrect;
+		}
+	}
+
+	private static class Candidate {
+		private final int itemId;
+		private final DCDate liftDate;
+
+		Candidate(int itemId, DCDate liftDate) {
+			this.itemId = itemId;
+			this.liftDate = liftDate;
+		}
+	}
+
+	/**
+	 * Progress of the current run and the start time of the last complete run, rewritten after every page.
+	 */
+	public static class Checkpoint {
+		private static final String LAST_COMPLETE = "last-complete";
+		private static final String RUN_STARTED = "run.started";
+		private static final String RUN_SINCE = "run.since";
+		private static final String RUN_LAST_ITEM = "run.last-item";
+
+		private final File file;
+		private final Properties properties = new Properties();
+
+		public Checkpoint(File file) throws IOException {
+			this.file = file;
+			if (file.exists()) {
+				try (FileInputStream in = new FileInputStream(file)) {
+					properties.load(in);
+				}
+			}
+		}
+
+		long getLastComplete() {
+			return getLong(LAST_COMPLETE);
+		}
+
+		boolean isRunning() {
+			return properties.containsKey(RUN_STARTED);
+		}
+
+		long getRunStarted() {
+			return getLong(RUN_STARTED);
+		}
+
+		long getSince() {
+			return getLong(RUN_SINCE);
+		}
+
+		int getLastItemId() {
+			return (int) getLong(RUN_LAST_ITEM);
+		}
+
+		void startRun(long started, long since) throws IOException {
+			properties.setProperty(RUN_STARTED, String.valueOf(started));
+			properties.setProperty(RUN_SINCE, String.valueOf(since));
+			properties.setProperty(RUN_LAST_ITEM, "0");
+			save();
+		}
+
+		void update(int lastItemId) throws IOException {
+			properties.setProperty(RUN_LAST_ITEM, String.valueOf(lastItemId));
+			save();
+		}
+
+		void completeRun() throws IOException {
+			properties.setProperty(LAST_COMPLETE, String.valueOf(getRunStarted()));
+			discardRun();
+		}
+
+		void discardRun() throws IOException {
+			properties.remove(RUN_STARTED);
+			properties.remove(RUN_SINCE);
+			properties.remove(RUN_LAST_ITEM);
+			save();
+		}
+
+		private long getLong(String key) {
+			try {
+				return Long.parseLong(properties.getProperty(key, "0"));
+			} catch (NumberFormatException e) {
+				return 0L;
+			}
+		}
+
+		private void save() throws IOException {
+			File temp = new File(file.getAbsolutePath() + ".tmp");
+			try (FileOutputStream out = new FileOutputStream(temp)) {
+				properties.store(out, "EmbargoPermissionAuditor checkpoint");
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Cannot move " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package nz.ac.lconz.irr.event.mail;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Token bucket per recipient domain, so that a burst of notifications (eg during a batch deposit) doesn't trip the
+ * throttling of the receiving mail servers.
+ *
+ * Each domain may be sent <code>mail.smtp.rate</code> messages per minute (default: 0, unlimited), or
+ * <code>mail.smtp.rate.[domain]</code> for a particular domain, with bursts of up to <code>mail.smtp.burst</code>
+ * messages (default: 10).
+ */
+class DomainRateLimiter {
+	private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+	/**
+	 * Take one token from the bucket of each recipient domain, if all of them have one.
+	 * @param recipients the e-mail addresses of the recipients
+	 * @return 0 if the message may be sent now; otherwise the number of milliseconds to wait before trying again (in
+	 * which case no tokens are taken)
+	 */
+	synchronized long reserve(Collection<String> recipients) {
+		EventConsumerConfig config = EventConsumerConfig.current();
+		long now = System.currentTimeMillis();
+		Set<Bucket> needed = new LinkedHashSet<Bucket>();
+		long wait = 0;
+		for (String recipient : recipients) {
+			Bucket bucket = getBucket(config, domainOf(recipient));
+			if (bucket != null && needed.add(bucket)) {
+				bucket.refill(now);
+				wait = Math.max(wait, bucket.millisUntilToken());
+			}
+		}
+		if (wait > 0) {
+			return wait;
+		}
+		for (Bucket bucket : needed) {
+			bucket.tokens -= 1;
+		}
+		return 0;
+	}
+
+	private Bucket getBucket(EventConsumerConfig config, String domain) {
+		int perMinute = config.getIntProperty("mail.smtp.rate." + domain, config.getIntProperty("mail.smtp.rate", 0));
+		if (perMinute <= 0) {
+			return null;
+		}
+		int burst = Math.max(1, config.getIntProperty("mail.smtp.burst", 10));
+		Bucket bucket = buckets.get(domain);
+		if (bucket == null) {
+			bucket = new Bucket(burst);
+			buckets.put(domain, bucket);
+		}
+		bucket.perMillis = perMinute / 60000.0;
+		bucket.capacity = burst;
+		return bucket;
+	}
+
+	private static String domainOf(String recipient) {
+		int at = recipient.lastIndexOf('@');
+		return (at >= 0 ? recipient.substring(at + 1) : recipient).trim().toLowerCase();
+	}
+
+	private static class Bucket {
+		private double tokens;
+		private double capacity;
+		private double perMillis;
+		private long lastRefill = System.currentTimeMillis();
+
+		Bucket(int capacity) {
+			this.capacity = capacity;
+			this.tokens = capacity;
+		}
+
+		void refill(long now) {
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * perMillis);
+			lastRefill = now;
+		}
+
+		long millisUntilToken() {
+			return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perMillis);
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package nz.ac.lconz.irr.event.mail;
+
+import nz.ac.lconz.irr.event.metrics.ConsumerMetrics;
+import nz.ac.lconz.irr.event.metrics.ConsumerStats;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.Outbox;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import javax.mail.MessagingException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends e-mail messages in the background so that event consumers and hooks don't wait for the SMTP server on the
+ * thread that commits the DSpace context.
+ *
+ * Each message is first written to a spool directory and only removed from there once it has been sent, so that
+ * queued messages survive a restart. Messages are sent by a bounded pool of worker threads; failed attempts are retried
+ * with exponential backoff, and messages that still fail after the configured number of retries are moved to the
+ * <code>failed</code> subdirectory of the spool.
+ *
+ * Several dispatchers (eg one per webapp) may share a spool directory: a dispatcher claims a spooled message by
+ * renaming it before sending it. Claimed messages whose dispatcher has gone away are released again after a while.
+ *
+ * Configuration (lconz-event.cfg):
+ * <ul>
+ *     <li>mail.dispatch.async: whether to send messages in the background (default: true)</li>
+ *     <li>mail.dispatch.workers: number of worker threads (default: 2)</li>
+ *     <li>mail.dispatch.queue-size: number of messages waiting in memory (default: 1000); further messages stay in
+ *     the spool until there is room</li>
+ *     <li>mail.dispatch.retries: number of retries after a failed attempt (default: 5)</li>
+ *     <li>mail.dispatch.backoff: seconds to wait before the first retry, doubled for each further retry (default: 30)</li>
+ *     <li>mail.dispatch.spool: spool directory (default: [dspace]/var/lconz-mail-spool)</li>
+ *     <li>mail.dispatch.sent-retention: hours for which the names of sent messages are remembered in the
+ *     <code>sent</code> subdirectory of the spool, so that a message isn't spooled again under the same name
+ *     (default: 168)</li>
+ *     <li>mail.smtp.pool.enabled: whether to keep SMTP connections open and send several messages per connection
+ *     (default: false, one connection per message via {@link org.dspace.core.Email}); see {@link PooledSmtpSender}</li>
+ * </ul>
+ * Before a message is sent, recipients who have just been sent the identical message are left out (see
+ * {@link RecentlySent}), and messages to domains that have used up their rate (see {@link DomainRateLimiter}) wait
+ * until they can be sent, without counting as a failed attempt.
+ *
+ * The worker pool size, queue size, spool directory and connection pool settings are read when the dispatcher starts.
+ */
+public class MailDispatcher {
+	private static final Logger log = Logger.getLogger(MailDispatcher.class);
+	private static final ConsumerStats stats = ConsumerMetrics.get(MailDispatcher.class.getSimpleName());
+
+	private static final String PENDING_SUFFIX = ".mail";
+	private static final String CLAIMED_SUFFIX = ".claimed";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final long SWEEP_INTERVAL_SECONDS = 60;
+	private static final long RECLAIM_AFTER_MILLIS = 30 * 60 * 1000;
+	private static final long PRUNE_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+	private static MailDispatcher instance;
+
+	private final File spoolDir;
+	private final File failedDir;
+	private final File sentDir;
+	private volatile long lastPrune = 0L;
+	private final ThreadPoolExecutor workers;
+	private final ScheduledExecutorService scheduler;
+	private final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final DomainRateLimiter rateLimiter = new DomainRateLimiter();
+	private final RecentlySent recentlySent = new RecentlySent();
+	private final PooledSmtpSender smtpSender;
+
+	MailDispatcher(File spoolDir, int workerCount, int queueSize) {
+		this.spoolDir = spoolDir;
+		EventConsumerConfig config = EventConsumerConfig.current();
+		if (config.getBooleanProperty("mail.smtp.pool.enabled", false)) {
+			smtpSender = new PooledSmtpSender(workerCount, config.getIntProperty("mail.smtp.pool.messages-per-connection", 100),
+					config.getIntProperty("mail.smtp.pool.idle", 30) * 1000L);
+		} else {
+			smtpSender = null;
+		}
+		this.failedDir = new File(spoolDir, "failed");
+		if (!failedDir.isDirectory() && !failedDir.mkdirs()) {
+			log.warn("Cannot create mail spool directory " + failedDir.getAbsolutePath());
+		}
+		this.sentDir = new File(spoolDir, "sent");
+		if (!sentDir.isDirectory() && !sentDir.mkdirs()) {
+			log.warn("Cannot create mail spool directory " + sentDir.getAbsolutePath());
+		}
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("lconz-mail"));
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lconz-mail-retry"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, 0, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the dispatcher for this JVM / webapp, started on first use
+	 */
+	public static synchronized MailDispatcher getInstance() {
+		if (instance == null) {
+			EventConsumerConfig config = EventConsumerConfig.current();
+			String defaultSpool = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-mail-spool";
+			File spool = new File(config.getProperty("mail.dispatch.spool", defaultSpool));
+			instance = new MailDispatcher(spool, Math.max(1, config.getIntProperty("mail.dispatch.workers", 2)),
+					Math.max(1, config.getIntProperty("mail.dispatch.queue-size", 1000)));
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					instance.shutdown();
+				}
+			}));
+			log.info("Started mail dispatcher with spool " + spool.getAbsolutePath());
+		}
+		return instance;
+	}
+
+	/**
+	 * Render the message and queue it for sending. Returns immediately unless background sending has been switched
+	 * off, in which case the message is sent right away.
+	 * @param message the message to send
+	 * @throws MessagingException if background sending is switched off and the message cannot be sent
+	 * @throws IOException if the message can neither be spooled nor sent
+	 */
+	public static void dispatch(MailMessage message) throws MessagingException, IOException {
+		QueuedMail mail = message.render();
+		if (!EventConsumerConfig.current().getBooleanProperty("mail.dispatch.async", true)) {
+			mail.deliver();
+			return;
+		}
+		if (Outbox.isEnabled() && Outbox.getInstance().append(mail)) {
+			return; // spooled by the outbox drainer
+		}
+		getInstance().enqueue(mail);
+	}
+
+	/**
+	 * Spool the message and hand it to a worker thread.
+	 * @param mail the rendered message
+	 * @throws IOException if the message cannot be written to the spool
+	 */
+	public void enqueue(QueuedMail mail) throws IOException {
+		enqueue(mail, System.currentTimeMillis() + "-" + UUID.randomUUID());
+	}
+
+	/**
+	 * Spool the message under the given name and hand it to a worker thread, unless a message of that name is already
+	 * waiting in the spool, has failed, or has been sent in the last <code>mail.dispatch.sent-retention</code> hours.
+	 * @param mail the rendered message
+	 * @param id the name of the message in the spool
+	 * @throws IOException if the message cannot be written to the spool
+	 */
+	public void enqueue(QueuedMail mail, String id) throws IOException {
+		if (new File(spoolDir, id + PENDING_SUFFIX).exists() || new File(spoolDir, id + CLAIMED_SUFFIX).exists()
+				|| new File(failedDir, id + PENDING_SUFFIX).exists()) {
+			log.info("Message " + id + " is already in the spool, not adding it again");
+			return;
+		}
+		if (new File(sentDir, id).exists()) {
+			log.info("Message " + id + " has already been sent, not sending it again");
+			return;
+		}
+		File claimed = new File(spoolDir, id + CLAIMED_SUFFIX);
+		write(mail, claimed);
+		if (!submit(claimed, mail)) {
+			// no room right now -> leave it for the next sweep
+			release(claimed);
+		}
+	}
+
+	private boolean submit(final File claimed, final QueuedMail mail) {
+		if (!inFlight.add(claimed.getName())) {
+			return true;
+		}
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					send(claimed, mail);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(claimed.getName());
+			return false;
+		}
+	}
+
+	private void send(final File claimed, final QueuedMail mail) {
+		List<String> recipients = recentlySent.filter(mail);
+		if (recipients.isEmpty()) {
+			log.info("Not sending " + mail + ", the same message has just been sent to all its recipients");
+			markSent(claimed);
+			inFlight.remove(claimed.getName());
+			claimed.delete();
+			return;
+		}
+		long wait = rateLimiter.reserve(recipients);
+		if (wait > 0) {
+			// not a failed attempt -> try again as soon as the recipients' domains can take another message
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					inFlight.remove(claimed.getName());
+					if (!submit(claimed, mail)) {
+						release(claimed);
+					}
+				}
+			}, wait, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		QueuedMail toSend = recipients.size() < mail.getRecipients().size() ? mail.withRecipients(recipients) : mail;
+		long start = stats.enter();
+		try {
+			if (smtpSender != null) {
+				smtpSender.send(toSend);
+			} else {
+				toSend.deliver();
+			}
+			recentlySent.record(toSend);
+			stats.exitMail(start);
+			stats.mailSent();
+			markSent(claimed);
+			inFlight.remove(claimed.getName());
+			if (!claimed.delete()) {
+				log.warn("Sent " + mail + " but could not remove it from the spool (" + claimed.getAbsolutePath() + ")");
+			}
+			return;
+		} catch (MessagingException | IOException | RuntimeException e) {
+			stats.exitMail(start);
+			stats.error();
+			mail.incrementAttempts();
+			log.warn("Attempt " + mail.getAttempts() + " to send " + mail + " failed", e);
+		}
+
+		EventConsumerConfig config = EventConsumerConfig.current();
+		int retries = config.getIntProperty("mail.dispatch.retries", 5);
+		if (mail.getAttempts() > retries) {
+			inFlight.remove(claimed.getName());
+			File failed = new File(failedDir, claimed.getName().replace(CLAIMED_SUFFIX, PENDING_SUFFIX));
+			if (claimed.renameTo(failed)) {
+				log.error("Giving up on " + mail + ", moved to " + failed.getAbsolutePath());
+			} else {
+				log.error("Giving up on " + mail + ", could not move it out of the spool (" + claimed.getAbsolutePath() + ")");
+			}
+			return;
+		}
+
+		try {
+			// remember the attempt count, and let other dispatchers know this message is still being looked after
+			write(mail, claimed);
+		} catch (IOException e) {
+			log.warn("Cannot update spooled message " + claimed.getAbsolutePath(), e);
+		}
+		long backoff = config.getIntProperty("mail.dispatch.backoff", 30) * (1L << Math.min(mail.getAttempts() - 1, 16));
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				inFlight.remove(claimed.getName());
+				if (!submit(claimed, mail)) {
+					release(claimed);
+				}
+			}
+		}, backoff, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Pick up spooled messages that aren't being handled by anyone: those left over from a previous run, those that
+	 * didn't fit into the queue, and those claimed by a dispatcher that has gone away.
+	 */
+	void sweep() {
+		try {
+			pruneSent();
+			File[] claimedFiles = spoolDir.listFiles(new SuffixFilter(CLAIMED_SUFFIX));
+			long now = System.currentTimeMillis();
+			if (claimedFiles != null) {
+				for (File claimed : claimedFiles) {
+					if (!inFlight.contains(claimed.getName()) && now - claimed.lastModified() > RECLAIM_AFTER_MILLIS) {
+						release(claimed);
+					}
+				}
+			}
+
+			File[] pendingFiles = spoolDir.listFiles(new SuffixFilter(PENDING_SUFFIX));
+			if (pendingFiles == null) {
+				return;
+			}
+			for (File pending : pendingFiles) {
+				if (workers.getQueue().remainingCapacity() == 0) {
+					return;
+				}
+				File claimed = new File(spoolDir, pending.getName().replace(PENDING_SUFFIX, CLAIMED_SUFFIX));
+				if (!pending.renameTo(claimed)) {
+					continue; // someone else got there first
+				}
+				QueuedMail mail;
+				try {
+					mail = read(claimed);
+				} catch (IOException | ClassNotFoundException e) {
+					log.error("Cannot read spooled message " + claimed.getAbsolutePath() + ", moving it out of the way", e);
+					claimed.renameTo(new File(failedDir, pending.getName()));
+					continue;
+				}
+				if (!submit(claimed, mail)) {
+					release(claimed);
+					return;
+				}
+			}
+		} catch (RuntimeException e) {
+			log.error("Problem checking the mail spool", e);
+		}
+	}
+
+	/**
+	 * Remember that the message has been sent, so that it isn't spooled again under the same name (eg when the outbox
+	 * replays the record it came from after a crash).
+	 */
+	private void markSent(File claimed) {
+		File tombstone = new File(sentDir, claimed.getName().substring(0, claimed.getName().length() - CLAIMED_SUFFIX.length()));
+		try {
+			tombstone.createNewFile();
+		} catch (IOException e) {
+			log.warn("Cannot record that " + claimed.getName() + " has been sent", e);
+		}
+	}
+
+	/**
+	 * Forget about messages sent longer ago than <code>mail.dispatch.sent-retention</code> hours (default: 168).
+	 */
+	private void pruneSent() {
+		long now = System.currentTimeMillis();
+		if (now - lastPrune < PRUNE_INTERVAL_MILLIS) {
+			return;
+		}
+		lastPrune = now;
+		long cutoff = now - EventConsumerConfig.current().getIntProperty("mail.dispatch.sent-retention", 168) * 60L * 60 * 1000;
+		File[] tombstones = sentDir.listFiles();
+		if (tombstones == null) {
+			return;
+		}
+		for (File tombstone : tombstones) {
+			if (tombstone.lastModified() < cutoff && !tombstone.delete()) {
+				log.warn("Cannot remove " + tombstone.getAbsolutePath());
+			}
+		}
+	}
+
+	private void release(File claimed) {
+		File pending = new File(spoolDir, claimed.getName().replace(CLAIMED_SUFFIX, PENDING_SUFFIX));
+		if (!claimed.renameTo(pending)) {
+			log.warn("Cannot return " + claimed.getAbsolutePath() + " to the spool");
+		}
+	}
+
+	private void write(QueuedMail mail, File file) throws IOException {
+		File temp = new File(spoolDir, file.getName() + TEMP_SUFFIX);
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(temp))) {
+			out.writeObject(mail);
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot move " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+	}
+
+	private QueuedMail read(File file) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+			return (QueuedMail) in.readObject();
+		}
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+		workers.shutdownNow();
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// anything not sent yet goes back to the spool and will be picked up after the restart
+		for (String name : inFlight) {
+			release(new File(spoolDir, name));
+		}
+		if (smtpSender != null) {
+			smtpSender.close();
+		}
+	}
+
+	private static class SuffixFilter implements FilenameFilter {
+		private final String suffix;
+
+		SuffixFilter(String suffix) {
+			this.suffix = suffix;
+		}
+
+		public boolean accept(File dir, String name) {
+			return name.endsWith(suffix);
+		}
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package nz.ac.lconz.irr.event.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An e-mail message built from a DSpace e-mail template, with the same API as {@link org.dspace.core.Email} for
+ * adding recipients and template arguments.
+ *
+ * Unlike Email, a MailMessage isn't sent by itself. Instead it is rendered into a {@link QueuedMail} (all template
+ * arguments substituted) and handed to the {@link MailDispatcher}, which sends it in the background. Messages are
+ * usually obtained from the {@link MailTemplateCache}, so that the template doesn't have to be read for each message.
+ */
+public class MailMessage {
+	private final MailTemplate template;
+	private final List<String> recipients = new ArrayList<String>();
+	private final List<Object> arguments = new ArrayList<Object>();
+
+	MailMessage(MailTemplate template) {
+		this.template = template;
+	}
+
+	/**
+	 * Read an e-mail template, in the same format as understood by {@link org.dspace.core.Email#getEmail(String)}.
+	 * The template is read from disk every time; use {@link MailTemplateCache#getMessage(java.util.Locale, String)}
+	 * to avoid that.
+	 * @param emailFile the full path to the template file, eg as obtained from
+	 * {@link org.dspace.core.I18nUtil#getEmailFilename(java.util.Locale, String)}
+	 * @return a message based on this template, without recipients or arguments
+	 * @throws IOException if the template cannot be read
+	 */
+	public static MailMessage getEmail(String emailFile) throws IOException {
+		return MailTemplate.read(emailFile).newMessage();
+	}
+
+	public void addRecipient(String email) {
+		recipients.add(email);
+	}
+
+	public void addArgument(Object arg) {
+		arguments.add(arg);
+	}
+
+	public List<String> getRecipients() {
+		return recipients;
+	}
+
+	/**
+	 * Substitute the arguments into the subject and body of the template.
+	 * @return the rendered message, ready to be sent
+	 */
+	public QueuedMail render() {
+		Object[] args = arguments.toArray();
+		String fullSubject = template.formatSubject(args);
+		String fullContent = template.formatContent(args);
+		return new QueuedMail(template.getFileName(), new ArrayList<String>(recipients), fullSubject, fullContent, template.getCharset());
+	}
+}
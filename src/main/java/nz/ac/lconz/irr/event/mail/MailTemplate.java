@@ -0,0 +1,91 @@
+package nz.ac.lconz.irr.event.mail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.MessageFormat;
+
+/**
+ * A parsed DSpace e-mail template, in the same format as understood by {@link org.dspace.core.Email#getEmail(String)}:
+ * an optional <code>Subject:</code> line, an optional <code>Charset:</code> line, comment lines starting with # and
+ * the body.
+ *
+ * Templates are immutable and can be shared between threads; the subject and body are parsed into
+ * {@link MessageFormat}s once, and each rendering works on a copy.
+ */
+public class MailTemplate {
+	private final String fileName;
+	private final long lastModified;
+	private final MessageFormat subject;
+	private final MessageFormat content;
+	private final String charset;
+
+	private MailTemplate(String fileName, long lastModified, String subject, String content, String charset) {
+		this.fileName = fileName;
+		this.lastModified = lastModified;
+		this.subject = new MessageFormat(subject);
+		this.content = new MessageFormat(content);
+		this.charset = charset;
+	}
+
+	/**
+	 * Read and parse a template file.
+	 * @param emailFile the full path to the template file, eg as obtained from
+	 * {@link org.dspace.core.I18nUtil#getEmailFilename(java.util.Locale, String)}
+	 * @return the parsed template
+	 * @throws IOException if the template cannot be read
+	 */
+	public static MailTemplate read(String emailFile) throws IOException {
+		long lastModified = new File(emailFile).lastModified();
+		String charset = null;
+		String subject = "";
+		StringBuilder contentBuffer = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(emailFile), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.toLowerCase().startsWith("subject:")) {
+					subject = line.substring(8).trim();
+				} else if (line.toLowerCase().startsWith("charset:")) {
+					charset = line.substring(8).trim();
+				} else if (!line.startsWith("#")) {
+					contentBuffer.append(line);
+					contentBuffer.append("\n");
+				}
+			}
+		}
+		return new MailTemplate(emailFile, lastModified, subject, contentBuffer.toString(), charset);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the modification time of the template file when it was read
+	 */
+	long getLastModified() {
+		return lastModified;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @return a new message based on this template, without recipients or arguments
+	 */
+	public MailMessage newMessage() {
+		return new MailMessage(this);
+	}
+
+	String formatSubject(Object[] args) {
+		// MessageFormat isn't thread safe
+		return ((MessageFormat) subject.clone()).format(args);
+	}
+
+	String formatContent(Object[] args) {
+		return ((MessageFormat) content.clone()).format(args);
+	}
+}
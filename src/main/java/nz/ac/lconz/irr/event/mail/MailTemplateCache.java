@@ -0,0 +1,81 @@
+package nz.ac.lconz.irr.event.mail;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.dspace.core.I18nUtil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of parsed e-mail templates, keyed by template name and locale, so that sending a notification doesn't need to
+ * look up, read and parse the template file every time.
+ *
+ * Whether the template file has changed (or a more specific localised template has appeared) is checked at most every
+ * <code>mail.template.check-interval</code> seconds (default: 10; 0 checks on every use); changed templates are read
+ * again.
+ */
+public class MailTemplateCache {
+	private static final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @param locale the locale to find the template for
+	 * @param templateName the name of the template, eg notify_embargo_set
+	 * @return a new message based on the template, without recipients or arguments
+	 * @throws IOException if the template cannot be found or read
+	 */
+	public static MailMessage getMessage(Locale locale, String templateName) throws IOException {
+		return getTemplate(locale, templateName).newMessage();
+	}
+
+	/**
+	 * @param locale the locale to find the template for
+	 * @param templateName the name of the template, eg notify_embargo_set
+	 * @return the parsed template
+	 * @throws IOException if the template cannot be found or read
+	 */
+	public static MailTemplate getTemplate(Locale locale, String templateName) throws IOException {
+		String key = templateName + "|" + locale;
+		long now = System.currentTimeMillis();
+		Entry entry = cache.get(key);
+		if (entry != null && entry.nextCheck > now) {
+			return entry.template;
+		}
+
+		String fileName = I18nUtil.getEmailFilename(locale, templateName);
+		if (StringUtils.isBlank(fileName)) {
+			cache.remove(key);
+			throw new FileNotFoundException("No e-mail template file found for " + templateName + " (locale " + locale + ")");
+		}
+		MailTemplate template;
+		if (entry != null && fileName.equals(entry.template.getFileName()) && new File(fileName).lastModified() == entry.template.getLastModified()) {
+			template = entry.template;
+		} else {
+			template = MailTemplate.read(fileName);
+		}
+		long interval = EventConsumerConfig.current().getIntProperty("mail.template.check-interval", 10) * 1000L;
+		cache.put(key, new Entry(template, now + interval));
+		return template;
+	}
+
+	/**
+	 * Forget all cached templates.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	private static class Entry {
+		private final MailTemplate template;
+		private final long nextCheck;
+
+		Entry(MailTemplate template, long nextCheck) {
+			this.template = template;
+			this.nextCheck = nextCheck;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package nz.ac.lconz.irr.event.mail;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends messages over a small pool of SMTP connections that are kept open between messages, rather than opening a
+ * new SMTP session for every message as {@link org.dspace.core.Email} does.
+ *
+ * Uses the mail server settings from dspace.cfg (mail.server, mail.server.port, mail.server.username,
+ * mail.server.password, mail.extraproperties, mail.from.address, mail.server.disabled). A connection is closed after
+ * <code>mail.smtp.pool.messages-per-connection</code> messages (default: 100), when it has been idle for longer than
+ * <code>mail.smtp.pool.idle</code> seconds (default: 30; servers drop idle connections), and after a failed send.
+ */
+class PooledSmtpSender {
+	private static final Logger log = Logger.getLogger(PooledSmtpSender.class);
+
+	private final Session session;
+	private final Semaphore permits;
+	private final Deque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+	private final int messagesPerConnection;
+	private final long maxIdleMillis;
+
+	PooledSmtpSender(int maxConnections, int messagesPerConnection, long maxIdleMillis) {
+		this.permits = new Semaphore(Math.max(1, maxConnections));
+		this.messagesPerConnection = Math.max(1, messagesPerConnection);
+		this.maxIdleMillis = maxIdleMillis;
+
+		Properties properties = new Properties();
+		properties.put("mail.smtp.host", ConfigurationManager.getProperty("mail.server"));
+		String port = ConfigurationManager.getProperty("mail.server.port");
+		if (StringUtils.isNotBlank(port)) {
+			properties.put("mail.smtp.port", port.trim());
+		}
+		String extraProperties = ConfigurationManager.getProperty("mail.extraproperties");
+		if (StringUtils.isNotBlank(extraProperties)) {
+			for (String property : extraProperties.split(",")) {
+				String[] keyValue = property.split("=", 2);
+				if (keyValue.length == 2) {
+					properties.put(keyValue[0].trim(), keyValue[1].trim());
+				}
+			}
+		}
+		if (StringUtils.isNotBlank(ConfigurationManager.getProperty("mail.server.username"))) {
+			properties.put("mail.smtp.auth", "true");
+		}
+		session = Session.getInstance(properties);
+	}
+
+	/**
+	 * Send the message over a pooled connection, waiting for a free connection if necessary.
+	 * @param mail the message
+	 * @throws MessagingException if the message cannot be sent
+	 */
+	void send(QueuedMail mail) throws MessagingException {
+		if (ConfigurationManager.getBooleanProperty("mail.server.disabled", false)) {
+			log.info("Not sending " + mail + ", mail.server.disabled is set");
+			return;
+		}
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while waiting for an SMTP connection");
+		}
+		PooledTransport transport = null;
+		boolean sent = false;
+		try {
+			MimeMessage message = createMessage(mail);
+			transport = borrow();
+			transport.transport.sendMessage(message, message.getAllRecipients());
+			transport.messages++;
+			sent = true;
+		} finally {
+			if (transport != null) {
+				giveBack(transport, sent);
+			}
+			permits.release();
+		}
+	}
+
+	private MimeMessage createMessage(QueuedMail mail) throws MessagingException {
+		String charset = mail.getCharset() != null ? mail.getCharset() : "UTF-8";
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress(ConfigurationManager.getProperty("mail.from.address")));
+		for (String recipient : mail.getRecipients()) {
+			message.addRecipient(MimeMessage.RecipientType.TO, new InternetAddress(recipient));
+		}
+		message.setSentDate(new Date());
+		message.setSubject(mail.getSubject(), charset);
+		message.setText(mail.getContent(), charset);
+		message.saveChanges();
+		return message;
+	}
+
+	private PooledTransport borrow() throws MessagingException {
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			PooledTransport transport;
+			while ((transport = idle.pollFirst()) != null) {
+				if (now - transport.lastUsed <= maxIdleMillis && transport.transport.isConnected()) {
+					return transport;
+				}
+				close(transport);
+			}
+		}
+		Transport transport = session.getTransport("smtp");
+		String username = ConfigurationManager.getProperty("mail.server.username");
+		if (StringUtils.isNotBlank(username)) {
+			transport.connect(username, ConfigurationManager.getProperty("mail.server.password"));
+		} else {
+			transport.connect();
+		}
+		return new PooledTransport(transport);
+	}
+
+	private void giveBack(PooledTransport transport, boolean healthy) {
+		if (!healthy || transport.messages >= messagesPerConnection) {
+			close(transport);
+			return;
+		}
+		transport.lastUsed = System.currentTimeMillis();
+		synchronized (idle) {
+			// most recently used first, so that spare connections time out
+			idle.addFirst(transport);
+		}
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	void close() {
+		synchronized (idle) {
+			PooledTransport transport;
+			while ((transport = idle.pollFirst()) != null) {
+				close(transport);
+			}
+		}
+	}
+
+	private void close(PooledTransport transport) {
+		try {
+			transport.transport.close();
+		} catch (MessagingException e) {
+			log.debug("Problem closing SMTP connection", e);
+		}
+	}
+
+	private static class PooledTransport {
+		private final Transport transport;
+		private int messages = 0;
+		private long lastUsed = System.currentTimeMillis();
+
+		PooledTransport(Transport transport) {
+			this.transport = transport;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package nz.ac.lconz.irr.event.mail;
+
+import org.dspace.core.Email;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fully rendered e-mail message waiting to be sent. Instances are serialised to the mail spool so that they survive
+ * a restart.
+ */
+public class QueuedMail implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String templateName;
+	private final List<String> recipients;
+	private final String subject;
+	private final String content;
+	private final String charset;
+	private int attempts = 0;
+
+	QueuedMail(String templateName, List<String> recipients, String subject, String content, String charset) {
+		this.templateName = templateName;
+		this.recipients = recipients;
+		this.subject = subject;
+		this.content = content;
+		this.charset = charset;
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+	public List<String> getRecipients() {
+		return Collections.unmodifiableList(recipients);
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	int getAttempts() {
+		return attempts;
+	}
+
+	void incrementAttempts() {
+		attempts++;
+	}
+
+	/**
+	 * @param recipients some of the recipients of this message
+	 * @return the same message, to the given recipients only
+	 */
+	QueuedMail withRecipients(List<String> recipients) {
+		QueuedMail copy = new QueuedMail(templateName, recipients, subject, content, charset);
+		copy.attempts = attempts;
+		return copy;
+	}
+
+	/**
+	 * Send this message synchronously, using the DSpace mail configuration.
+	 * @throws MessagingException if the message cannot be sent
+	 * @throws IOException if the message cannot be sent
+	 */
+	public void deliver() throws MessagingException, IOException {
+		Email email = new Email();
+		// Email runs subject and content through MessageFormat again -> protect what has already been rendered
+		email.setSubject(escape(subject));
+		email.setContent(escape(content));
+		if (charset != null) {
+			email.setCharset(charset);
+		}
+		for (String recipient : recipients) {
+			email.addRecipient(recipient);
+		}
+		email.send();
+	}
+
+	private static String escape(String rendered) {
+		return rendered.replace("'", "''").replace("{", "'{'");
+	}
+
+	@Override
+	public String toString() {
+		return "e-mail " + templateName + " to " + recipients;
+	}
+}
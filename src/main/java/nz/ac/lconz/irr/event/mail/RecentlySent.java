@@ -0,0 +1,95 @@
+package nz.ac.lconz.irr.event.mail;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which messages were sent to whom in the last <code>mail.smtp.merge-window</code> seconds (default: 600;
+ * 0 switches this off), so that identical messages to the same recipient (eg the same notification triggered twice
+ * during a batch deposit) are only sent once.
+ */
+class RecentlySent {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_ENTRIES = 10000;
+
+	// message digest + recipient -> time sent, oldest first
+	private final Map<String, Long> sent = new LinkedHashMap<String, Long>();
+
+	/**
+	 * @param mail a message about to be sent
+	 * @return the recipients that haven't been sent the identical message recently, in order
+	 */
+	synchronized List<String> filter(QueuedMail mail) {
+		long window = getWindowMillis();
+		if (window <= 0) {
+			return mail.getRecipients();
+		}
+		expire(window);
+		String digest = digest(mail);
+		List<String> recipients = new ArrayList<String>();
+		for (String recipient : mail.getRecipients()) {
+			if (!sent.containsKey(digest + " " + recipient.toLowerCase())) {
+				recipients.add(recipient);
+			}
+		}
+		return recipients;
+	}
+
+	/**
+	 * @param mail a message that has just been sent
+	 */
+	synchronized void record(QueuedMail mail) {
+		if (getWindowMillis() <= 0) {
+			return;
+		}
+		String digest = digest(mail);
+		long now = System.currentTimeMillis();
+		for (String recipient : mail.getRecipients()) {
+			String key = digest + " " + recipient.toLowerCase();
+			sent.remove(key);
+			sent.put(key, now);
+		}
+		while (sent.size() > MAX_ENTRIES) {
+			sent.remove(sent.keySet().iterator().next());
+		}
+	}
+
+	private void expire(long window) {
+		long cutoff = System.currentTimeMillis() - window;
+		for (Iterator<Long> times = sent.values().iterator(); times.hasNext(); ) {
+			if (times.next() >= cutoff) {
+				break;
+			}
+			times.remove();
+		}
+	}
+
+	private long getWindowMillis() {
+		return EventConsumerConfig.current().getIntProperty("mail.smtp.merge-window", 600) * 1000L;
+	}
+
+	private static String digest(QueuedMail mail) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(String.valueOf(mail.getSubject()).getBytes(UTF8));
+			digest.update((byte) 0);
+			digest.update(String.valueOf(mail.getContent()).getBytes(UTF8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
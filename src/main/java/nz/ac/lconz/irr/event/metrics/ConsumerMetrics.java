@@ -0,0 +1,189 @@
+package nz.ac.lconz.irr.event.metrics;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of {@link ConsumerStats}, one per event consumer / hook.
+ *
+ * Each consumer's statistics are registered with the platform MBean server as
+ * <code>nz.ac.lconz.irr.event:type=ConsumerStats,name=[consumer],loader=[id]</code> (the loader key tells apart
+ * the webapps running in the same JVM). If <code>metrics.stats.file</code> is set in lconz-event.cfg, all statistics
+ * are also written to that file every <code>metrics.stats.interval</code> seconds (default: 60); a <code>.[id]</code>
+ * suffix is added to the file name so that webapps don't overwrite each other's statistics.
+ *
+ * Event consumers hand their statistics back with {@link #release(ConsumerStats)} in finish(); once no consumer of that
+ * name is left, its MBean is unregistered, so that the MBean server doesn't keep the webapp's class loader alive after
+ * a redeploy. The counts are kept and the MBean is registered again when the next consumer of that name is created. A
+ * registration left behind under the same name (eg by an earlier deployment that wasn't shut down cleanly) is replaced.
+ * {@link #shutdown()} unregisters everything, including the statistics of the hooks, and stops the file writer.
+ */
+public class ConsumerMetrics {
+	private static final Logger log = Logger.getLogger(ConsumerMetrics.class);
+
+	private static final String JMX_DOMAIN = "nz.ac.lconz.irr.event";
+
+	private static final ConcurrentMap<String, ConsumerStats> registry = new ConcurrentHashMap<String, ConsumerStats>();
+	// name -> number of users that haven't released the statistics yet; guarded by itself
+	private static final Map<String, Integer> users = new HashMap<String, Integer>();
+	private static final String loaderId = Integer.toHexString(System.identityHashCode(ConsumerMetrics.class.getClassLoader()));
+	private static ScheduledExecutorService writer;
+
+	/**
+	 * @param name the name of the consumer or hook, usually its simple class name
+	 * @return the statistics for this consumer, created and registered on first use
+	 */
+	public static ConsumerStats get(String name) {
+		ConsumerStats stats = registry.get(name);
+		if (stats == null) {
+			ConsumerStats created = new ConsumerStats(name);
+			stats = registry.putIfAbsent(name, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		synchronized (users) {
+			Integer count = users.get(name);
+			users.put(name, count == null ? 1 : count + 1);
+			if (count == null || count == 0) {
+				register(stats);
+			}
+		}
+		ensureWriter();
+		return stats;
+	}
+
+	/**
+	 * Hand back statistics obtained from {@link #get(String)}, eg when the event dispatcher calls an event consumer's
+	 * finish(). The MBean is unregistered once all users of the statistics have released them.
+	 * @param stats the statistics
+	 */
+	public static void release(ConsumerStats stats) {
+		synchronized (users) {
+			Integer count = users.get(stats.getName());
+			if (count == null || count == 0) {
+				return;
+			}
+			users.put(stats.getName(), count - 1);
+			if (count == 1) {
+				unregister(stats.getName());
+			}
+		}
+	}
+
+	/**
+	 * Unregister all statistics and stop writing the statistics file, eg when the webapp is shut down. Statistics
+	 * used again afterwards are registered again.
+	 */
+	public static void shutdown() {
+		synchronized (users) {
+			for (String name : users.keySet()) {
+				unregister(name);
+			}
+			users.clear();
+		}
+		synchronized (ConsumerMetrics.class) {
+			if (writer != null) {
+				writer.shutdownNow();
+				writer = null;
+			}
+		}
+	}
+
+	private static ObjectName getObjectName(String name) throws MalformedObjectNameException {
+		return new ObjectName(JMX_DOMAIN + ":type=ConsumerStats,name=" + ObjectName.quote(name) + ",loader=" + loaderId);
+	}
+
+	private static void register(ConsumerStats stats) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = getObjectName(stats.getName());
+			try {
+				server.registerMBean(stats, objectName);
+			} catch (InstanceAlreadyExistsException e) {
+				// left behind by an earlier deployment -> replace it, so that its class loader can go
+				server.unregisterMBean(objectName);
+				server.registerMBean(stats, objectName);
+			}
+		} catch (Exception e) {
+			log.warn("Cannot register statistics for " + stats.getName() + " with JMX", e);
+		}
+	}
+
+	private static void unregister(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = getObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (Exception e) {
+			log.warn("Cannot unregister statistics for " + name + " from JMX", e);
+		}
+	}
+
+	private static synchronized void ensureWriter() {
+		if (writer != null) {
+			return;
+		}
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lconz-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = Math.max(1, EventConsumerConfig.current().getIntProperty("metrics.stats.interval", 60));
+		writer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				writeStatsFile();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Write all statistics to the configured stats file, if there is one.
+	 */
+	static void writeStatsFile() {
+		String fileName = EventConsumerConfig.current().getProperty("metrics.stats.file");
+		if (StringUtils.isBlank(fileName)) {
+			return;
+		}
+		File file = new File(fileName + "." + loaderId);
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8")) {
+				out.write("# LCoNZ event consumer statistics, written " + new Date() + "\n");
+				for (Map.Entry<String, ConsumerStats> entry : registry.entrySet()) {
+					out.write(entry.getValue().toStatsLines());
+				}
+			}
+			if (!temp.renameTo(file)) {
+				log.warn("Cannot move statistics file into place at " + file.getAbsolutePath());
+			}
+		} catch (IOException e) {
+			log.warn("Cannot write statistics file " + temp.getAbsolutePath(), e);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package nz.ac.lconz.irr.event.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, latency histograms and an in-flight gauge for one event consumer or hook.
+ *
+ * Timed sections are bracketed by {@link #enter()} and one of the <code>exit</code> methods:
+ * <pre>
+ * long start = stats.enter();
+ * try {
+ *     ...
+ * } finally {
+ *     stats.exitConsume(start);
+ * }
+ * </pre>
+ */
+public class ConsumerStats implements ConsumerStatsMBean {
+	private final String name;
+
+	private final AtomicLong eventsSeen = new AtomicLong();
+	private final AtomicLong eventsFiltered = new AtomicLong();
+	private final AtomicLong itemsQueued = new AtomicLong();
+	private final AtomicLong mailsSent = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final LatencyHistogram consumeLatency = new LatencyHistogram();
+	private final LatencyHistogram endLatency = new LatencyHistogram();
+	private final LatencyHistogram mailLatency = new LatencyHistogram();
+
+	ConsumerStats(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Start a timed section.
+	 * @return the start time, to be passed to the matching exit method
+	 */
+	public long enter() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	public void exitConsume(long start) {
+		consumeLatency.record(System.nanoTime() - start);
+		inFlight.decrementAndGet();
+	}
+
+	public void exitEnd(long start) {
+		endLatency.record(System.nanoTime() - start);
+		inFlight.decrementAndGet();
+	}
+
+	public void exitMail(long start) {
+		mailLatency.record(System.nanoTime() - start);
+		inFlight.decrementAndGet();
+	}
+
+	public void eventSeen() {
+		eventsSeen.incrementAndGet();
+	}
+
+	public void eventFiltered() {
+		eventsFiltered.incrementAndGet();
+	}
+
+	public void itemsQueued(int count) {
+		itemsQueued.addAndGet(count);
+	}
+
+	public void mailSent() {
+		mailsSent.incrementAndGet();
+	}
+
+	public void error() {
+		errors.incrementAndGet();
+	}
+
+	public long getEventsSeen() {
+		return eventsSeen.get();
+	}
+
+	public long getEventsFiltered() {
+		return eventsFiltered.get();
+	}
+
+	public long getItemsQueued() {
+		return itemsQueued.get();
+	}
+
+	public long getMailsSent() {
+		return mailsSent.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getConsumeCount() {
+		return consumeLatency.getCount();
+	}
+
+	public long getConsumeMeanMicros() {
+		return consumeLatency.getMeanMicros();
+	}
+
+	public long getConsumeP99Micros() {
+		return consumeLatency.getPercentileMicros(99);
+	}
+
+	public long getConsumeMaxMicros() {
+		return consumeLatency.getMaxMicros();
+	}
+
+	public long getEndCount() {
+		return endLatency.getCount();
+	}
+
+	public long getEndMeanMicros() {
+		return endLatency.getMeanMicros();
+	}
+
+	public long getEndP99Micros() {
+		return endLatency.getPercentileMicros(99);
+	}
+
+	public long getEndMaxMicros() {
+		return endLatency.getMaxMicros();
+	}
+
+	public long getMailCount() {
+		return mailLatency.getCount();
+	}
+
+	public long getMailMeanMicros() {
+		return mailLatency.getMeanMicros();
+	}
+
+	public long getMailP99Micros() {
+		return mailLatency.getPercentileMicros(99);
+	}
+
+	public long getMailMaxMicros() {
+		return mailLatency.getMaxMicros();
+	}
+
+	public void reset() {
+		eventsSeen.set(0);
+		eventsFiltered.set(0);
+		itemsQueued.set(0);
+		mailsSent.set(0);
+		errors.set(0);
+		consumeLatency.reset();
+		endLatency.reset();
+		mailLatency.reset();
+	}
+
+	/**
+	 * @return the statistics as name=value lines, prefixed with the consumer name
+	 */
+	String toStatsLines() {
+		StringBuilder result = new StringBuilder();
+		line(result, "events.seen", getEventsSeen());
+		line(result, "events.filtered", getEventsFiltered());
+		line(result, "items.queued", getItemsQueued());
+		line(result, "mails.sent", getMailsSent());
+		line(result, "errors", getErrors());
+		line(result, "inflight", getInFlight());
+		line(result, "consume.count", getConsumeCount());
+		line(result, "consume.mean_us", getConsumeMeanMicros());
+		line(result, "consume.p99_us", getConsumeP99Micros());
+		line(result, "consume.max_us", getConsumeMaxMicros());
+		line(result, "end.count", getEndCount());
+		line(result, "end.mean_us", getEndMeanMicros());
+		line(result, "end.p99_us", getEndP99Micros());
+		line(result, "end.max_us", getEndMaxMicros());
+		line(result, "mail.count", getMailCount());
+		line(result, "mail.mean_us", getMailMeanMicros());
+		line(result, "mail.p99_us", getMailP99Micros());
+		line(result, "mail.max_us", getMailMaxMicros());
+		return result.toString();
+	}
+
+	private void line(StringBuilder result, String key, long value) {
+		result.append(name).append('.').append(key).append(" = ").append(value).append('\n');
+	}
+}
@@ -0,0 +1,44 @@
+package nz.ac.lconz.irr.event.metrics;
+
+/**
+ * JMX view of the statistics of one event consumer or hook. Latencies are in microseconds.
+ */
+public interface ConsumerStatsMBean {
+	long getEventsSeen();
+
+	long getEventsFiltered();
+
+	long getItemsQueued();
+
+	long getMailsSent();
+
+	long getErrors();
+
+	int getInFlight();
+
+	long getConsumeCount();
+
+	long getConsumeMeanMicros();
+
+	long getConsumeP99Micros();
+
+	long getConsumeMaxMicros();
+
+	long getEndCount();
+
+	long getEndMeanMicros();
+
+	long getEndP99Micros();
+
+	long getEndMaxMicros();
+
+	long getMailCount();
+
+	long getMailMeanMicros();
+
+	long getMailP99Micros();
+
+	long getMailMaxMicros();
+
+	void reset();
+}
@@ -0,0 +1,74 @@
+package nz.ac.lconz.irr.event.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets (in microseconds), good enough to tell a 100&micro;s call from
+ * a 100ms one without keeping individual samples.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * @param nanos the duration to record, in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(nanos / 1000, 0);
+		int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : totalMicros.get() / n;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * @param percentile the percentile, eg 99
+	 * @return an upper bound (in microseconds) for the given percentile of the recorded durations
+	 */
+	public long getPercentileMicros(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long threshold = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= threshold) {
+				return i == 0 ? 0 : Math.min(1L << i, getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+}
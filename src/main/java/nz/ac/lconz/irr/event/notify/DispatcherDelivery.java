@@ -0,0 +1,16 @@
+package nz.ac.lconz.irr.event.notify;
+
+import nz.ac.lconz.irr.event.mail.MailDispatcher;
+import nz.ac.lconz.irr.event.mail.MailMessage;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+
+/**
+ * Default delivery backend: hands messages to the {@link MailDispatcher}.
+ */
+public class DispatcherDelivery implements NotificationDelivery {
+	public void deliver(MailMessage message) throws IOException, MessagingException {
+		MailDispatcher.dispatch(message);
+	}
+}
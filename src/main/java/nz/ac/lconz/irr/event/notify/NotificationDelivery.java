@@ -0,0 +1,20 @@
+package nz.ac.lconz.irr.event.notify;
+
+import nz.ac.lconz.irr.event.mail.MailMessage;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+
+/**
+ * Backend that delivers the messages produced by the {@link NotificationEngine}. The backend is chosen via
+ * <code>notify.delivery</code> in lconz-event.cfg (fully qualified class name of an implementation with a public
+ * no-argument constructor; default: {@link DispatcherDelivery}).
+ */
+public interface NotificationDelivery {
+	/**
+	 * @param message the message to deliver, with recipients and arguments set
+	 * @throws IOException if the message cannot be delivered or handed on
+	 * @throws MessagingException if the message cannot be delivered
+	 */
+	void deliver(MailMessage message) throws IOException, MessagingException;
+}
@@ -0,0 +1,150 @@
+package nz.ac.lconz.irr.event.notify;
+
+import nz.ac.lconz.irr.event.hook.EmbargoDigest;
+import nz.ac.lconz.irr.event.mail.MailMessage;
+import nz.ac.lconz.irr.event.mail.MailTemplateCache;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import nz.ac.lconz.irr.event.util.RecipientCache;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.core.Context;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sends the notifications described by {@link NotificationType}s: works out the recipients, fills in the template
+ * arguments from a {@link NotificationSubject} and hands the message to the configured {@link NotificationDelivery}
+ * (or to the digest, if digests are switched on for the template).
+ *
+ * Recipients come from the {@link RecipientCache} and links from the
+ * {@link nz.ac.lconz.irr.event.util.HandleUrlResolver}, so adding a notification type doesn't add database lookups.
+ */
+public class NotificationEngine {
+	private static final Logger log = Logger.getLogger(NotificationEngine.class);
+
+	private static final String DELIVERY = "notify.delivery";
+
+	private static volatile NotificationDelivery delivery;
+	private static volatile String deliveryClass;
+
+	/**
+	 * Send a notification.
+	 * @param context the DSpace context
+	 * @param typeName the name of the notification type, eg embargo.set
+	 * @param subject the item the notification is about, with any extra values set
+	 * @return true if a message was handed to the delivery backend; false if there was nobody to notify, the type
+	 * isn't configured or the notification was added to a digest
+	 * @throws SQLException if the recipients cannot be looked up
+	 * @throws IOException if the template cannot be read or the message cannot be handed on
+	 * @throws MessagingException if the message cannot be delivered
+	 */
+	public static boolean send(Context context, String typeName, NotificationSubject subject) throws SQLException, IOException, MessagingException {
+		EventConsumerConfig config = EventConsumerConfig.current();
+		NotificationType type = NotificationType.get(config, typeName);
+		if (type == null) {
+			log.warn("No e-mail template configured for notification type " + typeName + ", not sending");
+			return false;
+		}
+
+		String[] recipients = findRecipients(config, type, subject);
+		if (recipients == null || recipients.length == 0) {
+			log.debug("Nobody to notify about item id=" + subject.getItem().getID() + " (" + typeName + ")");
+			return false;
+		}
+
+		if (type.getDigestDescription() != null && EmbargoDigest.isEnabled(type.getTemplate())) {
+			EmbargoDigest.add(type.getTemplate(), type.getDigestDescription(), recipients, new EmbargoDigest.Entry(subject.getString("handle"),
+					subject.getString("title"), subject.getString("author"), subject.getString("date"), subject.getString("url")));
+			return false;
+		}
+
+		Locale locale = type.useContextLocale() && context.getCurrentLocale() != null ? context.getCurrentLocale() : Locale.getDefault();
+		MailMessage message = MailTemplateCache.getMessage(locale, type.getTemplate());
+		for (String recipient : recipients) {
+			message.addRecipient(recipient);
+		}
+		for (String argument : type.getArguments()) {
+			message.addArgument(subject.getValue(argument));
+		}
+		getDelivery(config).deliver(message);
+		return true;
+	}
+
+	/**
+	 * @return the e-mail addresses to notify, or null if the recipients aren't configured or cannot be found
+	 */
+	static String[] findRecipients(EventConsumerConfig config, NotificationType type, NotificationSubject subject) throws SQLException {
+		String spec = type.getRecipients();
+		if (StringUtils.isBlank(spec) || !spec.contains(":")) {
+			log.warn("No recipients configured for notification type " + type.getName());
+			return null;
+		}
+		String kind = spec.substring(0, spec.indexOf(':')).trim();
+		String value = spec.substring(spec.indexOf(':') + 1).trim();
+		// the value can be the name of a property holding the actual value
+		if (config.getProperty(value) != null) {
+			value = config.getProperty(value);
+		}
+		if (StringUtils.isBlank(value)) {
+			log.warn("No recipients configured for notification type " + type.getName() + " (" + spec + ")");
+			return null;
+		}
+
+		switch (kind) {
+			case "group":
+			case "group-members":
+				int groupId;
+				try {
+					groupId = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					log.warn("Group ID " + value + " given for notification type " + type.getName() + " isn't numeric");
+					return null;
+				}
+				List<String> emails = RecipientCache.getRecipientEmails(subject.getContext(), groupId, "group".equals(kind));
+				if (emails == null) {
+					log.warn("Notification group id=" + groupId + " for notification type " + type.getName() + " not found");
+					return null;
+				}
+				return emails.toArray(new String[emails.size()]);
+			case "field":
+				String[] components = value.split("\\.");
+				if (components.length < 2) {
+					log.warn("Metadata field " + value + " given for notification type " + type.getName() + " isn't of the form schema.element[.qualifier]");
+					return null;
+				}
+				String submitterEmail = subject.getString("submitter.email");
+				List<String> addresses = new ArrayList<String>();
+				for (String address : subject.getMetadataValues(components[0], components[1], components.length > 2 ? components[2] : null)) {
+					if (!address.equalsIgnoreCase(submitterEmail)) {
+						addresses.add(address);
+					}
+				}
+				return addresses.toArray(new String[addresses.size()]);
+			default:
+				log.warn("Unknown kind of recipients " + kind + " for notification type " + type.getName());
+				return null;
+		}
+	}
+
+	static NotificationDelivery getDelivery(EventConsumerConfig config) {
+		String className = config.getProperty(DELIVERY, DispatcherDelivery.class.getName());
+		NotificationDelivery current = delivery;
+		if (current != null && className.equals(deliveryClass)) {
+			return current;
+		}
+		try {
+			current = (NotificationDelivery) Class.forName(className).newInstance();
+		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
+			log.error("Cannot create notification delivery backend " + className + ", using the mail dispatcher", e);
+			current = new DispatcherDelivery();
+		}
+		delivery = current;
+		deliveryClass = className;
+		return current;
+	}
+}
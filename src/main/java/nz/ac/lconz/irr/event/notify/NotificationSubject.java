@@ -0,0 +1,154 @@
+package nz.ac.lconz.irr.event.notify;
+
+import nz.ac.lconz.irr.event.util.HandleUrlResolver;
+import nz.ac.lconz.irr.event.util.MetadataProjection;
+import org.apache.log4j.Logger;
+import org.dspace.content.Collection;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+import org.dspace.eperson.EPerson;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The item a notification is about, with the fields that templates can use. Fields are worked out when first asked
+ * for and then remembered; metadata values come from the item's {@link MetadataProjection}, so that sending several
+ * notifications about the same item costs no more lookups than sending one.
+ *
+ * Available fields:
+ * <ul>
+ *     <li>handle: the handle, or [workflow item]</li>
+ *     <li>url: the URL of the item, or "the item's workflow screen"</li>
+ *     <li>canonical: the canonical form of the handle (eg http://hdl.handle.net/...)</li>
+ *     <li>title: the first title, or "no title"</li>
+ *     <li>name: the item's name (first title), may be empty</li>
+ *     <li>author: the first author, or "no authors"</li>
+ *     <li>collection: the name of the owning collection</li>
+ *     <li>user.name, user.email: the current user, or Unknown User / probably automated</li>
+ *     <li>submitter.email: the e-mail address of the submitter</li>
+ *     <li>anything passed in as an extra value by the caller, eg date</li>
+ * </ul>
+ */
+public class NotificationSubject {
+	private static final Logger log = Logger.getLogger(NotificationSubject.class);
+
+	private static final String TITLE_FIELD = "dc.title";
+	private static final String AUTHOR_FIELD = "dc.contributor.author";
+
+	static {
+		MetadataProjection.register(TITLE_FIELD, AUTHOR_FIELD);
+	}
+
+	private final Context context;
+	private final Item item;
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	public NotificationSubject(Context context, Item item) {
+		this.context = context;
+		this.item = item;
+	}
+
+	public Context getContext() {
+		return context;
+	}
+
+	public Item getItem() {
+		return item;
+	}
+
+	/**
+	 * Set a value that isn't derived from the item, eg the embargo date.
+	 * @param field the name of the field
+	 * @param value the value
+	 */
+	public void setValue(String field, Object value) {
+		values.put(field, value);
+	}
+
+	/**
+	 * @param field the name of the field
+	 * @return the value of the field; the empty string for unknown fields
+	 * @throws SQLException if the value needs to be looked up and the lookup fails
+	 */
+	public Object getValue(String field) throws SQLException {
+		if (values.containsKey(field)) {
+			return values.get(field);
+		}
+		Object value = compute(field);
+		values.put(field, value);
+		return value;
+	}
+
+	/**
+	 * @param field the name of the field
+	 * @return the value of the field as a string; the empty string if there is no value
+	 * @throws SQLException if the value needs to be looked up and the lookup fails
+	 */
+	public String getString(String field) throws SQLException {
+		Object value = getValue(field);
+		return value != null ? String.valueOf(value) : "";
+	}
+
+	/**
+	 * @param schema the metadata schema
+	 * @param element the metadata element
+	 * @param qualifier the metadata qualifier, null for none or Item.ANY for any
+	 * @return the values of the field, in order
+	 */
+	public List<String> getMetadataValues(String schema, String element, String qualifier) {
+		String field = schema + "." + element;
+		if (Item.ANY.equals(qualifier)) {
+			field += ".*";
+		} else if (qualifier != null) {
+			field += "." + qualifier;
+		}
+		return MetadataProjection.getValues(context, item, field);
+	}
+
+	private Object compute(String field) throws SQLException {
+		switch (field) {
+			case "handle":
+				return item.getHandle() != null ? item.getHandle() : "[workflow item]";
+			case "url":
+				if (item.getHandle() != null) {
+					try {
+						String link = HandleUrlResolver.resolveToURL(context, item.getHandle());
+						if (link != null) {
+							return link;
+						}
+					} catch (SQLException ex) {
+						log.warn("can't determine url to item from handle " + item.getHandle(), ex);
+					}
+				}
+				return "the item's workflow screen";
+			case "canonical":
+				return HandleUrlResolver.getCanonicalForm(item.getHandle());
+			case "title":
+				return firstValue(TITLE_FIELD, "no title");
+			case "name":
+				return firstValue(TITLE_FIELD, "");
+			case "author":
+				return firstValue(AUTHOR_FIELD, "no authors");
+			case "collection":
+				Collection collection = item.getOwningCollection();
+				return collection != null ? collection.getName() : "";
+			case "user.name":
+				return context.getCurrentUser() != null ? context.getCurrentUser().getFullName() : "Unknown User";
+			case "user.email":
+				return context.getCurrentUser() != null ? context.getCurrentUser().getEmail() : "probably automated";
+			case "submitter.email":
+				EPerson submitter = item.getSubmitter();
+				return submitter != null ? submitter.getEmail() : null;
+			default:
+				return "";
+		}
+	}
+
+	private String firstValue(String field, String defaultValue) {
+		List<String> fieldValues = MetadataProjection.getValues(context, item, field);
+		return fieldValues.isEmpty() ? defaultValue : fieldValues.get(0);
+	}
+}
@@ -0,0 +1,115 @@
+package nz.ac.lconz.irr.event.notify;
+
+import nz.ac.lconz.irr.event.mail.MailMessage;
+import nz.ac.lconz.irr.event.mail.MailTemplateCache;
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import org.apache.log4j.Logger;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects many notifications of one type (eg for all items of a bulk import) and sends a single summary e-mail per
+ * group of recipients instead of one e-mail per item.
+ *
+ * The summary uses the type's summary template (see {@link NotificationType#getSummaryTemplate()}) with the
+ * arguments {0} number of items, {1} list of items (title, link). Types without a summary template are sent one by
+ * one as they are added.
+ */
+public class NotificationSummary {
+	private static final Logger log = Logger.getLogger(NotificationSummary.class);
+
+	private final String typeName;
+	private final Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+	private int sentIndividually = 0;
+
+	/**
+	 * @param typeName the name of the notification type, eg author.archive
+	 */
+	public NotificationSummary(String typeName) {
+		this.typeName = typeName;
+	}
+
+	/**
+	 * Add a notification to the summary for its recipients. Everything needed from the item is looked up straight
+	 * away, so the item can be dropped from the context cache afterwards.
+	 * @param subject the item the notification is about
+	 * @throws SQLException if the recipients cannot be looked up
+	 * @throws IOException if a notification sent one by one cannot be handed on
+	 * @throws MessagingException if a notification sent one by one cannot be delivered
+	 */
+	public void add(NotificationSubject subject) throws SQLException, IOException, MessagingException {
+		EventConsumerConfig config = EventConsumerConfig.current();
+		NotificationType type = NotificationType.get(config, typeName);
+		if (type == null) {
+			log.warn("No e-mail template configured for notification type " + typeName + ", not sending");
+			return;
+		}
+		if (type.getSummaryTemplate() == null) {
+			if (NotificationEngine.send(subject.getContext(), typeName, subject)) {
+				sentIndividually++;
+			}
+			return;
+		}
+
+		String[] recipients = NotificationEngine.findRecipients(config, type, subject);
+		if (recipients == null || recipients.length == 0) {
+			log.debug("Nobody to notify about item id=" + subject.getItem().getID() + " (" + typeName + ")");
+			return;
+		}
+		String key = Arrays.toString(recipients);
+		Summary summary = summaries.get(key);
+		if (summary == null) {
+			summary = new Summary(recipients);
+			summaries.put(key, summary);
+		}
+		summary.count++;
+		summary.list.append(subject.getString("title")).append("\n");
+		summary.list.append("    ").append(subject.getString("url")).append("\n\n");
+	}
+
+	/**
+	 * Send the summaries collected so far.
+	 * @return the number of e-mails sent, including notifications sent one by one
+	 * @throws IOException if the template cannot be read or a message cannot be handed on
+	 * @throws MessagingException if a message cannot be delivered
+	 */
+	public int send() throws IOException, MessagingException {
+		EventConsumerConfig config = EventConsumerConfig.current();
+		NotificationType type = NotificationType.get(config, typeName);
+		int sent = sentIndividually;
+		sentIndividually = 0;
+		if (type == null || type.getSummaryTemplate() == null) {
+			summaries.clear();
+			return sent;
+		}
+		for (Summary summary : summaries.values()) {
+			MailMessage message = MailTemplateCache.getMessage(Locale.getDefault(), type.getSummaryTemplate());
+			for (String recipient : summary.recipients) {
+				message.addRecipient(recipient);
+			}
+			message.addArgument(summary.count);
+			message.addArgument(summary.list.toString());
+			NotificationEngine.getDelivery(config).deliver(message);
+			sent++;
+			log.info("Sent summary of " + summary.count + " notifications (" + typeName + ") to " + Arrays.toString(summary.recipients));
+		}
+		summaries.clear();
+		return sent;
+	}
+
+	private static class Summary {
+		private final String[] recipients;
+		private final StringBuilder list = new StringBuilder();
+		private int count = 0;
+
+		Summary(String[] recipients) {
+			this.recipients = recipients;
+		}
+	}
+}
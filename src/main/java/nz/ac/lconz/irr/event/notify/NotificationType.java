@@ -0,0 +1,146 @@
+package nz.ac.lconz.irr.event.notify;
+
+import nz.ac.lconz.irr.event.util.EventConsumerConfig;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declarative description of one kind of notification: which e-mail template to use, who receives it, and which item
+ * fields are passed to the template as {0}, {1}, ...
+ *
+ * The built-in types (embargo.set, embargo.lifted, embargo.expired, embargo.advance, embargo.permissions, duplicate,
+ * author.archive) can be changed, and new types added, via lconz-event.cfg:
+ * <ul>
+ *     <li><code>notify.type.[name].template</code>: name of the e-mail template</li>
+ *     <li><code>notify.type.[name].recipients</code>: one of <code>group:[id]</code> (all members of the group,
+ *     including subgroups), <code>group-members:[id]</code> (direct members only) or <code>field:[field]</code>
+ *     (addresses in the item's metadata field, except the submitter's). Instead of the ID or field itself, the name of
+ *     the configuration property holding it can be given (eg <code>group:embargo.notify.groupid</code>).</li>
+ *     <li><code>notify.type.[name].arguments</code>: the template arguments, in order (see
+ *     {@link NotificationSubject#getValue(String)} for the available fields)</li>
+ *     <li><code>notify.type.[name].digest</code>: description of the type to use in digests; if set, the
+ *     notification can be collected into a digest (see {@link nz.ac.lconz.irr.event.hook.EmbargoDigest})</li>
+ *     <li><code>notify.type.[name].summary</code>: name of the e-mail template for a summary of many notifications
+ *     (eg after a bulk import, see {@link NotificationSummary}); if not set, such notifications are sent one by one</li>
+ *     <li><code>notify.type.[name].locale</code>: <code>context</code> to use the locale of the current user,
+ *     <code>default</code> for the default locale</li>
+ * </ul>
+ */
+public class NotificationType {
+	private static final String PREFIX = "notify.type.";
+
+	private static final Map<String, NotificationType> defaults = new HashMap<String, NotificationType>();
+
+	static {
+		define("embargo.set", "notify_embargo_set", "group:embargo.notify.groupid", "Embargo set", null, true,
+				"handle", "title", "author", "user.name", "user.email", "date", "url");
+		define("embargo.lifted", "notify_embargo_lift", "group:embargo.notify.groupid", "Embargo lifted", null, true,
+				"handle", "title", "author", "user.name", "user.email", "url");
+		define("embargo.expired", "notify_embargo", "group:embargo.notify.groupid", "Embargo expired", null, true,
+				"handle", "title", "author", "date", "url", "collection");
+		define("embargo.advance", "notify_embargo_advance", "group:embargo.notify.groupid", "Embargo about to expire", null, false,
+				"handle", "title", "author", "date", "url");
+		define("embargo.permissions", "notify_embargo_permissions", "group:embargo.notify.groupid", "Embargoed item with incorrect permissions", null, true,
+				"handle", "title", "author", "date", "url");
+		define("duplicate", "notify_duplicate", "group-members:notify.duplicate.recipients-group-id", null, null, false,
+				"url");
+		define("author.archive", "author_notify_archive", "field:notify.author.archive.field", null, "author_notify_archive_summary", false,
+				"name", "collection", "canonical", "special.message", "special.value");
+	}
+
+	private final String name;
+	private final String template;
+	private final String recipients;
+	private final String digestDescription;
+	private final String summaryTemplate;
+	private final boolean contextLocale;
+	private final List<String> arguments;
+
+	private NotificationType(String name, String template, String recipients, String digestDescription, String summaryTemplate, boolean contextLocale, List<String> arguments) {
+		this.name = name;
+		this.template = template;
+		this.recipients = recipients;
+		this.digestDescription = digestDescription;
+		this.summaryTemplate = summaryTemplate;
+		this.contextLocale = contextLocale;
+		this.arguments = arguments;
+	}
+
+	private static void define(String name, String template, String recipients, String digestDescription, String summaryTemplate, boolean contextLocale, String... arguments) {
+		defaults.put(name, new NotificationType(name, template, recipients, digestDescription, summaryTemplate, contextLocale, Collections.unmodifiableList(Arrays.asList(arguments))));
+	}
+
+	/**
+	 * @param config the configuration snapshot
+	 * @param name the name of the notification type
+	 * @return the notification type, with the built-in defaults overridden by the configuration; null if the type is
+	 * neither built in nor configured
+	 */
+	static NotificationType get(EventConsumerConfig config, String name) {
+		NotificationType builtIn = defaults.get(name);
+		String prefix = PREFIX + name + ".";
+		String template = config.getProperty(prefix + "template", builtIn != null ? builtIn.template : null);
+		if (StringUtils.isBlank(template)) {
+			return null;
+		}
+		String recipients = config.getProperty(prefix + "recipients", builtIn != null ? builtIn.recipients : null);
+		String digestDescription = config.getProperty(prefix + "digest", builtIn != null ? builtIn.digestDescription : null);
+		String summaryTemplate = config.getProperty(prefix + "summary", builtIn != null ? builtIn.summaryTemplate : null);
+		String locale = config.getProperty(prefix + "locale");
+		boolean contextLocale = locale != null ? "context".equals(locale) : builtIn != null && builtIn.contextLocale;
+		List<String> arguments = config.getList(prefix + "arguments");
+		if (arguments.isEmpty() && builtIn != null) {
+			arguments = builtIn.arguments;
+		}
+		return new NotificationType(name, template, recipients, digestDescription, summaryTemplate, contextLocale, arguments);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	/**
+	 * @return the recipients specification, eg group:embargo.notify.groupid
+	 */
+	public String getRecipients() {
+		return recipients;
+	}
+
+	/**
+	 * @return the description used in digests, or null if this type is never collected into a digest
+	 */
+	public String getDigestDescription() {
+		return digestDescription;
+	}
+
+	/**
+	 * @return the template for a summary of many notifications of this type (see {@link NotificationSummary}), or
+	 * null if notifications of this type are always sent one by one
+	 */
+	public String getSummaryTemplate() {
+		return summaryTemplate;
+	}
+
+	/**
+	 * @return whether to use the locale of the current context rather than the default locale
+	 */
+	public boolean useContextLocale() {
+		return contextLocale;
+	}
+
+	/**
+	 * @return the names of the template arguments, in order
+	 */
+	public List<String> getArguments() {
+		return arguments;
+	}
+}
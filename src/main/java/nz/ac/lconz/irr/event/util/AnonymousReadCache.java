@@ -0,0 +1,73 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.authorize.AuthorizeManager;
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.eperson.Group;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of whether anonymous users have READ access to a collection, keyed by collection ID.
+ *
+ * Entries are removed by {@link nz.ac.lconz.irr.event.consumer.CacheInvalidationConsumer} when the collection is
+ * modified or deleted. DSpace doesn't raise events when resource policies change, so entries also expire after
+ * <code>cache.anonymous-read.ttl</code> seconds (default: 300).
+ */
+public class AnonymousReadCache {
+	private static final ConcurrentMap<Integer, Entry> cache = new ConcurrentHashMap<Integer, Entry>();
+
+	/**
+	 * @param ctx the DSpace context, used for the policy lookup if the collection isn't cached
+	 * @param collection the collection to check
+	 * @return whether the anonymous group has READ access to the collection
+	 * @throws SQLException if the policies cannot be looked up
+	 */
+	public static boolean anonymousCanRead(Context ctx, DSpaceObject collection) throws SQLException {
+		long now = System.currentTimeMillis();
+		Entry entry = cache.get(collection.getID());
+		if (entry != null && entry.expires > now) {
+			return entry.readable;
+		}
+
+		boolean readable = false;
+		Group[] readGroups = AuthorizeManager.getAuthorizedGroups(ctx, collection, Constants.READ);
+		for (Group group : readGroups) {
+			if (group.getID() == 0) {
+				readable = true;
+				break;
+			}
+		}
+		long ttl = EventConsumerConfig.current().getIntProperty("cache.anonymous-read.ttl", 300) * 1000L;
+		cache.put(collection.getID(), new Entry(readable, now + ttl));
+		return readable;
+	}
+
+	/**
+	 * Forget the cached decision for one collection.
+	 * @param collectionId the ID of the collection
+	 */
+	public static void invalidate(int collectionId) {
+		cache.remove(collectionId);
+	}
+
+	/**
+	 * Forget all cached decisions.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	private static class Entry {
+		private final boolean readable;
+		private final long expires;
+
+		Entry(boolean readable, long expires) {
+			this.readable = readable;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.core.Context;
+import org.dspace.event.Event;
+
+/**
+ * Keeps track of the applicable events a consumer has seen for one context while the events are being dispatched.
+ *
+ * Consumers that only act on the last applicable event of a commit used to find out whether an event is the last one
+ * by re-checking every event still waiting in the context's queue, which is quadratic in the number of events. This
+ * tracker instead remembers the most recent applicable event as events arrive (constant work per event), so that the
+ * consumer can resolve it once when the dispatcher calls end().
+ */
+public class ApplicableEventTracker {
+	private Context context;
+	private Event lastApplicable;
+	private int applicableCount;
+
+	/**
+	 * Record an event that the consumer has found to be applicable.
+	 * @param ctx the context the event belongs to
+	 * @param event the applicable event
+	 */
+	public void record(Context ctx, Event event) {
+		if (context != ctx) {
+			// events from a different context -> anything we have is stale
+			reset();
+			context = ctx;
+		}
+		lastApplicable = event;
+		applicableCount++;
+	}
+
+	/**
+	 * @param ctx the context for which to look up the last applicable event
+	 * @return the last applicable event recorded for this context, or null if there was none
+	 */
+	public Event getLastApplicable(Context ctx) {
+		if (context != ctx) {
+			return null;
+		}
+		return lastApplicable;
+	}
+
+	/**
+	 * @return the number of applicable events recorded since the last reset
+	 */
+	public int getApplicableCount() {
+		return applicableCount;
+	}
+
+	/**
+	 * Forget all recorded events.
+	 */
+	public void reset() {
+		context = null;
+		lastApplicable = null;
+		applicableCount = 0;
+	}
+}
@@ -0,0 +1,296 @@
+package nz.ac.lconz.irr.event.util;
+
+import nz.ac.lconz.irr.event.notify.NotificationSubject;
+import nz.ac.lconz.irr.event.notify.NotificationSummary;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * IDs of the items that consumers have skipped while in {@link BulkMode}, one manifest per consumer, to be processed
+ * in one go once the bulk import is done.
+ *
+ * Manifests are kept in <code>bulk.manifest.dir</code> (default: [dspace]/var/lconz-bulk) as [name].ids, one item ID
+ * per line. Manifests named curation.[consumer] hold items to queue the consumer's curation tasks for (using
+ * queue.[consumer].tasks and queue.[consumer].name, eg curation.install); manifests named notify.[type] hold items to
+ * send notifications of that type about (eg notify.author.archive), as one summary per recipient where the type has a
+ * summary template.
+ *
+ * Run via [dspace]/bin/dspace dsrun nz.ac.lconz.irr.event.util.BulkManifest [-n name] [-l]
+ */
+public class BulkManifest {
+	private static final Logger log = Logger.getLogger(BulkManifest.class);
+
+	public static final String CURATION_PREFIX = "curation.";
+	public static final String NOTIFY_PREFIX = "notify.";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".ids";
+	// items taken out of the manifest but not completely processed yet
+	private static final String PROCESSING_SUFFIX = ".processing";
+	// number of items to look at before clearing the context cache
+	private static final int CHUNK_SIZE = 500;
+
+	private final File dir;
+	private final String name;
+
+	BulkManifest(File dir, String name) {
+		this.dir = dir;
+		this.name = name;
+	}
+
+	/**
+	 * @param name the name of the manifest, eg curation.install
+	 * @return the manifest of that name in the configured directory
+	 */
+	public static BulkManifest get(String name) {
+		return new BulkManifest(getDir(), name);
+	}
+
+	private static File getDir() {
+		String defaultDir = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-bulk";
+		return new File(EventConsumerConfig.current().getProperty("bulk.manifest.dir", defaultDir));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("n", "name", true, "only process the manifest of this name (eg curation.install)");
+		options.addOption("l", "list", false, "only list the manifests and the number of items in them");
+		options.addOption("h", "help", false, "print this help message");
+
+		CommandLine line;
+		try {
+			line = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("BulkManifest", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("BulkManifest", options);
+			return;
+		}
+
+		File dir = getDir();
+		List<String> names = line.hasOption("n") ? Collections.singletonList(line.getOptionValue("n")) : list(dir);
+		if (line.hasOption("l")) {
+			for (String name : names) {
+				System.out.println(name + ": " + new BulkManifest(dir, name).read().size() + " items");
+			}
+			return;
+		}
+
+		Context context = new Context();
+		try {
+			context.turnOffAuthorisationSystem();
+			for (String name : names) {
+				if (!name.startsWith(CURATION_PREFIX) && !name.startsWith(NOTIFY_PREFIX)) {
+					System.err.println("Don't know how to process manifest " + name + ", leaving it alone");
+					continue;
+				}
+				BulkManifest manifest = new BulkManifest(dir, name);
+				Set<Integer> itemIds = manifest.take();
+				if (itemIds.isEmpty()) {
+					manifest.done();
+					continue;
+				}
+				if (name.startsWith(CURATION_PREFIX)) {
+					int queued = queueForCuration(context, name.substring(CURATION_PREFIX.length()), itemIds);
+					System.out.println(name + ": queued tasks for " + queued + " items");
+				} else {
+					int sent = sendNotifications(context, name.substring(NOTIFY_PREFIX.length()), itemIds);
+					System.out.println(name + ": sent " + sent + " e-mails about " + itemIds.size() + " items");
+				}
+				manifest.done();
+			}
+			context.restoreAuthSystemState();
+			context.complete();
+		} finally {
+			if (context.isValid()) {
+				context.abort();
+			}
+		}
+	}
+
+	private static int queueForCuration(Context context, String consumer, Set<Integer> itemIds) throws Exception {
+		CurationHelper helper = new CurationHelper();
+		helper.initTaskNames("queue." + consumer + ".tasks");
+		if (!helper.hasTaskNames()) {
+			log.warn("No tasks configured for " + consumer + " (queue." + consumer + ".tasks), nothing to queue");
+			return 0;
+		}
+		helper.initQueueName("queue." + consumer + ".name");
+		CurationBatch batch = new CurationBatch();
+		batch.setSkipPending(EventConsumerConfig.current().getBooleanProperty("queue.skip_pending", false));
+		int count = 0;
+		for (Integer itemId : itemIds) {
+			Item item = Item.find(context, itemId);
+			if (item == null) {
+				log.info("Item id=" + itemId + " no longer exists, not queueing it");
+				continue;
+			}
+			helper.addToQueue(item);
+			if (++count % CHUNK_SIZE == 0) {
+				// routing may look at the items -> add them to the batch before dropping them from the cache
+				helper.addTo(batch);
+				context.clearCache();
+			}
+		}
+		helper.addTo(batch);
+		batch.flush(context);
+		return count;
+	}
+
+	private static int sendNotifications(Context context, String type, Set<Integer> itemIds) throws Exception {
+		NotificationSummary summary = new NotificationSummary(type);
+		int count = 0;
+		for (Integer itemId : itemIds) {
+			Item item = Item.find(context, itemId);
+			if (item == null) {
+				log.info("Item id=" + itemId + " no longer exists, not sending a notification about it");
+				continue;
+			}
+			NotificationSubject subject = new NotificationSubject(context, item);
+			// blank, as for single notifications, in case the type is sent one by one
+			subject.setValue("special.message", "");
+			subject.setValue("special.value", "");
+			summary.add(subject);
+			if (++count % CHUNK_SIZE == 0) {
+				MetadataProjection.clear(context);
+				context.clearCache();
+			}
+		}
+		MetadataProjection.clear(context);
+		return summary.send();
+	}
+
+	/**
+	 * @return the names of the manifests in the directory, including those whose processing was interrupted
+	 */
+	static List<String> list(File dir) {
+		Set<String> names = new LinkedHashSet<String>();
+		String[] files = dir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX) || name.endsWith(PROCESSING_SUFFIX);
+			}
+		});
+		if (files != null) {
+			for (String file : files) {
+				names.add(StringUtils.removeEnd(StringUtils.removeEnd(file, SUFFIX), PROCESSING_SUFFIX));
+			}
+		}
+		List<String> result = new ArrayList<String>(names);
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Add an item to the manifest.
+	 * @param itemId the ID of the item
+	 * @throws IOException if the manifest cannot be written to
+	 */
+	public void add(int itemId) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create bulk manifest directory " + dir.getAbsolutePath());
+		}
+		File file = new File(dir, name + SUFFIX);
+		try (LockedFile locked = LockedFile.lock(file)) {
+			FileChannel channel = locked.getChannel();
+			channel.position(channel.size());
+			ByteBuffer buffer = ByteBuffer.wrap((itemId + "\n").getBytes(UTF8));
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * @return the IDs of the items waiting in the manifest (including any taken out by an interrupted run), in order
+	 * and without duplicates
+	 * @throws IOException if the manifest cannot be read
+	 */
+	Set<Integer> read() throws IOException {
+		Set<Integer> itemIds = new LinkedHashSet<Integer>();
+		readInto(new File(dir, name + PROCESSING_SUFFIX), itemIds);
+		readInto(new File(dir, name + SUFFIX), itemIds);
+		return itemIds;
+	}
+
+	/**
+	 * Take all items out of the manifest for processing; they are kept aside until {@link #done()} is called, so that
+	 * they aren't lost if processing fails.
+	 * @return the IDs of the items, in order and without duplicates
+	 * @throws IOException if the manifest cannot be read or written to
+	 */
+	Set<Integer> take() throws IOException {
+		File file = new File(dir, name + SUFFIX);
+		File processing = new File(dir, name + PROCESSING_SUFFIX);
+		if (file.exists()) {
+			try (LockedFile locked = LockedFile.lock(file)) {
+				FileChannel channel = locked.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+				channel.position(0);
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// keep reading
+				}
+				try (FileOutputStream out = new FileOutputStream(processing, true)) {
+					out.write(buffer.array(), 0, buffer.position());
+					out.getFD().sync();
+				}
+				channel.truncate(0);
+			}
+		}
+		Set<Integer> itemIds = new LinkedHashSet<Integer>();
+		readInto(processing, itemIds);
+		return itemIds;
+	}
+
+	/**
+	 * Forget the items taken out by {@link #take()}.
+	 */
+	void done() {
+		File processing = new File(dir, name + PROCESSING_SUFFIX);
+		if (processing.exists() && !processing.delete()) {
+			log.warn("Cannot delete processed bulk manifest " + processing.getAbsolutePath());
+		}
+	}
+
+	private void readInto(File file, Set<Integer> itemIds) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		for (String line : new String(Files.readAllBytes(file.toPath()), UTF8).split("\n")) {
+			if (StringUtils.isBlank(line)) {
+				continue;
+			}
+			try {
+				itemIds.add(Integer.parseInt(line.trim()));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring malformed line in bulk manifest " + file.getAbsolutePath() + ": " + line);
+			}
+		}
+	}
+
+}
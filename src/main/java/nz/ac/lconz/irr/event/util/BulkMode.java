@@ -0,0 +1,42 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.core.Context;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Switch for bulk imports: while bulk mode is on, consumers that would queue curation tasks or send notifications for
+ * every item only record the item in a {@link BulkManifest}, to be processed in one go afterwards.
+ *
+ * Bulk mode is on for all contexts while <code>bulk.mode = true</code> is set in lconz-event.cfg (eg for the duration
+ * of a SAF or CSV import), or for a single context after {@link #enable(Context)} has been called on it.
+ */
+public class BulkMode {
+	private static final Set<Context> contexts = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Context, Boolean>()));
+
+	/**
+	 * Switch on bulk mode for one context.
+	 * @param ctx the DSpace context
+	 */
+	public static void enable(Context ctx) {
+		contexts.add(ctx);
+	}
+
+	/**
+	 * Switch off bulk mode for one context; it stays on if it is switched on in the configuration.
+	 * @param ctx the DSpace context
+	 */
+	public static void disable(Context ctx) {
+		contexts.remove(ctx);
+	}
+
+	/**
+	 * @param ctx the DSpace context
+	 * @return whether bulk mode is on for the context
+	 */
+	public static boolean isActive(Context ctx) {
+		return EventConsumerConfig.current().getBooleanProperty("bulk.mode", false) || contexts.contains(ctx);
+	}
+}
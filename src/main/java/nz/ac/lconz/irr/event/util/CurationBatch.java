@@ -0,0 +1,232 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.Context;
+import org.dspace.core.PluginManager;
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.dspace.eperson.EPerson;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects (object, task, queue) triples to be queued for curation and writes them to the task queue in one go.
+ *
+ * Duplicate triples are collapsed, and all tasks for the same object and queue are combined into a single queue entry,
+ * so that each queue is written to exactly once per batch. Optionally, tasks that are already waiting in the target
+ * queue for the same object are skipped. Queues are written in the priority order of the configured
+ * {@link QueueRoute}s, so that tasks for fast queues become visible first.
+ */
+public class CurationBatch {
+	private static final Logger log = Logger.getLogger(CurationBatch.class);
+
+	// queue name -> object identifier -> task names, all in insertion order
+	private final Map<String, Map<String, Set<String>>> entries = new LinkedHashMap<String, Map<String, Set<String>>>();
+	private int size = 0;
+	private boolean skipPending = false;
+	private TaskQueue taskQueue;
+	// run once the entries have been written to the task queue or the outbox
+	private final List<Runnable> whenHandedOver = new ArrayList<Runnable>();
+
+	/**
+	 * Add a task to the batch, unless the same task has already been added for the same object and queue.
+	 * @param identifier the handle (or ID) of the object to curate
+	 * @param taskName the name of the curation task
+	 * @param queueName the name of the task queue
+	 */
+	public void add(String identifier, String taskName, String queueName) {
+		Map<String, Set<String>> queueEntries = entries.get(queueName);
+		if (queueEntries == null) {
+			queueEntries = new LinkedHashMap<String, Set<String>>();
+			entries.put(queueName, queueEntries);
+		}
+		Set<String> tasks = queueEntries.get(identifier);
+		if (tasks == null) {
+			tasks = new LinkedHashSet<String>();
+			queueEntries.put(identifier, tasks);
+		}
+		if (tasks.add(taskName)) {
+			size++;
+		}
+	}
+
+	/**
+	 * @return the number of distinct (object, task, queue) triples in this batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the entries of this batch: queue name -> object identifier -> task names
+	 */
+	Map<String, Map<String, Set<String>>> entries() {
+		return entries;
+	}
+
+	/**
+	 * Remove all entries from this batch, and forget the actions waiting for them to be handed over.
+	 */
+	void clear() {
+		entries.clear();
+		size = 0;
+		whenHandedOver.clear();
+	}
+
+	/**
+	 * Run an action once the entries of this batch have been written to the task queue or the outbox, eg to remove them
+	 * from where they came from. The action is dropped if that doesn't happen.
+	 * @param action the action
+	 */
+	void whenHandedOver(Runnable action) {
+		whenHandedOver.add(action);
+	}
+
+	/**
+	 * Run the actions waiting for the entries of this batch to be handed over.
+	 */
+	void handedOver() {
+		List<Runnable> actions = new ArrayList<Runnable>(whenHandedOver);
+		whenHandedOver.clear();
+		for (Runnable action : actions) {
+			action.run();
+		}
+	}
+
+	boolean isSkipPending() {
+		return skipPending;
+	}
+
+	/**
+	 * @param skipPending whether to leave out tasks that are already waiting in the target queue for the same object
+	 */
+	public void setSkipPending(boolean skipPending) {
+		this.skipPending = skipPending;
+	}
+
+	/**
+	 * @param taskQueue the task queue to write to; by default the one configured for curation in DSpace is used
+	 */
+	public void setTaskQueue(TaskQueue taskQueue) {
+		this.taskQueue = taskQueue;
+	}
+
+	/**
+	 * Write all entries of this batch to the task queue, one write per queue, and empty the batch.
+	 * @param ctx the DSpace context, used to determine the user on whose behalf the tasks are queued
+	 * @throws IOException if the task queue cannot be written to
+	 */
+	public void flush(Context ctx) throws IOException {
+		if (entries.isEmpty()) {
+			handedOver();
+			return;
+		}
+		EPerson user = ctx.getCurrentUser();
+		write(user != null ? user.getName() : "", System.currentTimeMillis());
+	}
+
+	/**
+	 * Write all entries of this batch to the task queue, one write per queue, and empty the batch.
+	 * @param epersonId the name of the user on whose behalf the tasks are queued
+	 * @param submitTime the time the tasks were submitted
+	 * @throws IOException if the task queue cannot be written to
+	 */
+	void write(String epersonId, long submitTime) throws IOException {
+		if (entries.isEmpty()) {
+			return;
+		}
+		TaskQueue queue = taskQueue != null ? taskQueue : (TaskQueue) PluginManager.getSinglePlugin("curate", TaskQueue.class);
+		if (queue == null) {
+			log.error("No curation task queue configured, cannot queue " + size + " tasks");
+			return;
+		}
+
+		try {
+			for (Map.Entry<String, Map<String, Set<String>>> queueEntries : byPriority()) {
+				String queueName = queueEntries.getKey();
+				Map<String, Set<String>> pending = skipPending ? findPending(queue, queueName) : null;
+				Set<TaskQueueEntry> entrySet = new LinkedHashSet<TaskQueueEntry>();
+				int skipped = 0;
+				for (Map.Entry<String, Set<String>> objectTasks : queueEntries.getValue().entrySet()) {
+					String identifier = objectTasks.getKey();
+					ArrayList<String> tasks = new ArrayList<String>(objectTasks.getValue());
+					if (pending != null && pending.containsKey(identifier)) {
+						int before = tasks.size();
+						tasks.removeAll(pending.get(identifier));
+						skipped += before - tasks.size();
+					}
+					if (!tasks.isEmpty()) {
+						entrySet.add(new TaskQueueEntry(epersonId, submitTime, tasks, identifier));
+					}
+				}
+				if (skipped > 0) {
+					log.info("Skipped " + skipped + " tasks already pending in queue " + queueName);
+				}
+				if (!entrySet.isEmpty()) {
+					queue.enqueue(queueName, entrySet);
+					log.info("Queued " + entrySet.size() + " objects for curation in queue " + queueName);
+				}
+			}
+			handedOver();
+		} finally {
+			clear();
+		}
+	}
+
+	/**
+	 * @return the entries of this batch per queue, the queues of higher priority routes first
+	 */
+	private List<Map.Entry<String, Map<String, Set<String>>>> byPriority() {
+		List<Map.Entry<String, Map<String, Set<String>>>> result = new ArrayList<Map.Entry<String, Map<String, Set<String>>>>();
+		Set<String> seen = new HashSet<String>();
+		for (QueueRoute route : EventConsumerConfig.current().getQueueRoutes()) {
+			if (entries.containsKey(route.getQueueName()) && seen.add(route.getQueueName())) {
+				result.add(new AbstractMap.SimpleEntry<String, Map<String, Set<String>>>(route.getQueueName(), entries.get(route.getQueueName())));
+			}
+		}
+		for (Map.Entry<String, Map<String, Set<String>>> queueEntries : entries.entrySet()) {
+			if (!seen.contains(queueEntries.getKey())) {
+				result.add(queueEntries);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Peek at the entries currently waiting in the queue. This is best effort: if the queue is being read by someone
+	 * else right now, nothing (or only part of the queue) will be found.
+	 */
+	private Map<String, Set<String>> findPending(TaskQueue queue, String queueName) {
+		Map<String, Set<String>> pending = new HashMap<String, Set<String>>();
+		long ticket = System.nanoTime();
+		try {
+			for (TaskQueueEntry entry : queue.dequeue(queueName, ticket)) {
+				Set<String> tasks = pending.get(entry.getObjectId());
+				if (tasks == null) {
+					tasks = new HashSet<String>();
+					pending.put(entry.getObjectId(), tasks);
+				}
+				tasks.addAll(entry.getTaskNames());
+			}
+		} catch (IOException e) {
+			log.warn("Cannot check pending entries in queue " + queueName + ", not skipping any", e);
+		} finally {
+			// put everything back as it was
+			queue.release(queueName, ticket, false);
+		}
+		return pending;
+	}
+}
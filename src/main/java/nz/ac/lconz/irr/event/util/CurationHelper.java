@@ -1,13 +1,16 @@
 package nz.ac.lconz.irr.event.util;
 
 import nz.ac.lconz.irr.event.consumer.QueueTaskOnEvent;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.content.Collection;
 import org.dspace.content.Item;
-import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Context;
-import org.dspace.curate.Curator;
 
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -20,30 +23,63 @@ import java.util.List;
 public class CurationHelper {
 	private static Logger log = Logger.getLogger(CurationHelper.class);
 
-	private List<String> taskNames = new ArrayList<String>();
-	private String queueName = "continually";
+	private static final String DEFAULT_QUEUE_NAME = "continually";
+	private static final long RELEASE_INTERVAL_MILLIS = 60 * 1000;
+
+	private static volatile long lastRelease = 0L;
+
+	private String tasksProperty;
+	private String queueProperty;
+	private String debounceProperty;
 	private ArrayList<Item> toQueue;
 
 	public void initQueueName(String queueProperty) {
-		String queueConfig = ConfigurationManager.getProperty("lconz-event", queueProperty);
+		this.queueProperty = queueProperty;
+		String queueConfig = EventConsumerConfig.current().getProperty(queueProperty);
 		if (queueConfig != null && !"".equals(queueConfig)) {
-			queueName = queueConfig;
-			log.info("Using queue name " + queueName);
+			log.info("Using queue name " + queueConfig);
 		} else {
-			log.info("No queue name specified, using default: " + queueName);
+			log.info("No queue name specified, using default: " + DEFAULT_QUEUE_NAME);
 		}
 	}
 
 	public void initTaskNames(String tasksProperty) {
-		List<String> taskNamesList;
-		String taskConfig = ConfigurationManager.getProperty("lconz-event", tasksProperty);
-		if (taskConfig == null || "".equals(taskConfig)) {
-			taskNamesList = Collections.emptyList();
-		} else {
-			taskNamesList = Arrays.asList(taskConfig.split("\\s*,\\s*"));
+		this.tasksProperty = tasksProperty;
+		log.info("Setting up tasks as " + Arrays.deepToString(getTaskNames().toArray()));
+	}
+
+	/**
+	 * Switch on debouncing: rather than being queued straight away, items wait in the {@link PendingCurationSet} until
+	 * they haven't changed for the number of seconds given in the property (0 or not set: no debouncing).
+	 * @param debounceProperty the configuration property holding the quiet period
+	 */
+	public void initDebounce(String debounceProperty) {
+		this.debounceProperty = debounceProperty;
+		int quietPeriod = getQuietPeriod();
+		if (quietPeriod > 0) {
+			log.info("Holding back items until they haven't changed for " + quietPeriod + " seconds");
 		}
-		taskNames.addAll(taskNamesList);
-		log.info("Setting up tasks as " + Arrays.deepToString(taskNames.toArray()));
+	}
+
+	private int getQuietPeriod() {
+		if (debounceProperty == null) {
+			return 0;
+		}
+		return EventConsumerConfig.current().getIntProperty(debounceProperty, 0);
+	}
+
+	private List<String> getTaskNames() {
+		if (tasksProperty == null) {
+			return Collections.emptyList();
+		}
+		return EventConsumerConfig.current().getList(tasksProperty);
+	}
+
+	private String getQueueName() {
+		if (queueProperty == null) {
+			return DEFAULT_QUEUE_NAME;
+		}
+		return EventConsumerConfig.current().getProperty(queueProperty, DEFAULT_QUEUE_NAME);
 	}
 
 	public void addToQueue(Item item) {
@@ -54,27 +90,161 @@ public class CurationHelper {
 		log.info("Adding item " + item.getHandle() + " to list of items to queue");
 	}
 
+	/**
+	 * Record the item in this consumer's {@link BulkManifest} rather than queueing it (see {@link BulkMode}).
+	 * @param item the item
+	 * @throws IOException if the manifest cannot be written to
+	 */
+	public void addToManifest(Item item) throws IOException {
+		BulkManifest.get(BulkManifest.CURATION_PREFIX + getConsumerName()).add(item.getID());
+		log.debug("Recorded item " + item.getHandle() + " in the bulk manifest");
+	}
+
 	public void queueForCuration(Context ctx) throws IOException {
+		CurationBatch batch = newBatch();
+		collect(batch);
+		submit(ctx, batch);
+	}
+
+	/**
+	 * @return an empty batch, set up according to the configuration
+	 */
+	public static CurationBatch newBatch() {
+		CurationBatch batch = new CurationBatch();
+		batch.setSkipPending(EventConsumerConfig.current().getBooleanProperty("queue.skip_pending", false));
+		return batch;
+	}
+
+	/**
+	 * Add the items collected so far to the given batch, or hold them back until they have gone quiet if debouncing
+	 * is switched on (in which case items that have gone quiet by now are added instead).
+	 * @param batch the batch to add to
+	 * @throws IOException if the set of pending items cannot be read or written
+	 */
+	public void collect(CurationBatch batch) throws IOException {
+		int quietPeriod = getQuietPeriod();
+		if (quietPeriod > 0) {
+			CurationBatch changed = new CurationBatch();
+			addTo(changed);
+			long now = System.currentTimeMillis();
+			// nothing new -> only look for items that have gone quiet every now and then, not on every commit
+			if (!changed.isEmpty() || now - lastRelease > RELEASE_INTERVAL_MILLIS) {
+				lastRelease = now;
+				PendingCurationSet.getDefault().update(changed, batch, quietPeriod * 1000L);
+			}
+		} else {
+			addTo(batch);
+		}
+	}
+
+	/**
+	 * Hand the batch over to the {@link Outbox} if it is enabled, otherwise write it to the task queue straight away.
+	 * @param ctx the DSpace context
+	 * @param batch the batch
+	 * @throws IOException if the task queue cannot be written to
+	 */
+	public static void submit(Context ctx, CurationBatch batch) throws IOException {
+		if (!Outbox.isEnabled() || !Outbox.getInstance().append(ctx, batch)) {
+			batch.flush(ctx);
+		}
+	}
+
+	/**
+	 * Add the items collected so far to the given batch, for each configured task, and forget about them. Each task
+	 * goes to the queue of the first matching route (see {@link QueueRoute}), or to the consumer's queue if no route
+	 * matches.
+	 * @param batch the batch to add to
+	 */
+	public void addTo(CurationBatch batch) {
 		if (toQueue != null && !toQueue.isEmpty()) {
 			log.info("Actually queueing " + toQueue.size() + " items for curation");
-			for (String taskName : taskNames) {
-				Curator curator = new Curator().addTask(taskName);
-				for (Item item : toQueue) {
-					String identifier;
-					if (item.getHandle() != null) {
-						identifier = item.getHandle();
-					} else {
-						identifier = item.getID()  + "";
-					}
-					log.info("Queued item " + identifier + " for curation in queue " + queueName + ", task " + taskName);
-					curator.queue(ctx, identifier, queueName);
+			String defaultQueueName = getQueueName();
+			String consumerName = getConsumerName();
+			List<QueueRoute> routes = EventConsumerConfig.current().getQueueRoutes();
+			List<String> taskNames = getTaskNames();
+			for (Item item : toQueue) {
+				String identifier;
+				if (item.getHandle() != null) {
+					identifier = item.getHandle();
+				} else {
+					identifier = item.getID()  + "";
+				}
+				ItemFacts facts = new ItemFacts(item);
+				for (String taskName : taskNames) {
+					String queueName = route(routes, consumerName, taskName, facts, defaultQueueName);
+					log.debug("Queueing item " + identifier + " for curation in queue " + queueName + ", task " + taskName);
+					batch.add(identifier, taskName, queueName);
 				}
 			}
 		}
 		toQueue = null;
 	}
 
+	private String route(List<QueueRoute> routes, String consumerName, String taskName, ItemFacts facts, String defaultQueueName) {
+		for (QueueRoute route : routes) {
+			if (route.matches(consumerName, taskName)
+					&& route.matchesItem(route.needsCollection() ? facts.getCollectionHandle() : null, route.needsSize() ? facts.getSize() : -1L)) {
+				return route.getQueueName();
+			}
+		}
+		return defaultQueueName;
+	}
+
+	/**
+	 * @return the name routes use for the consumer, ie the tasks property without queue. and .tasks
+	 * (eg install for queue.install.tasks)
+	 */
+	private String getConsumerName() {
+		if (tasksProperty == null) {
+			return "";
+		}
+		return StringUtils.removeEnd(StringUtils.removeStart(tasksProperty, "queue."), ".tasks");
+	}
+
 	public boolean hasTaskNames() {
-		return !taskNames.isEmpty();
+		return !getTaskNames().isEmpty();
+	}
+
+	/**
+	 * The facts about an item that routes may depend on, looked up only when a route asks for them.
+	 */
+	private static class ItemFacts {
+		private final Item item;
+		private String collectionHandle;
+		private boolean collectionLoaded = false;
+		private long size = -1L;
+
+		ItemFacts(Item item) {
+			this.item = item;
+		}
+
+		String getCollectionHandle() {
+			if (!collectionLoaded) {
+				collectionLoaded = true;
+				try {
+					Collection collection = item.getOwningCollection();
+					collectionHandle = collection != null ? collection.getHandle() : null;
+				} catch (SQLException e) {
+					log.warn("Cannot determine owning collection of item id=" + item.getID() + " for queue routing", e);
+				}
+			}
+			return collectionHandle;
+		}
+
+		long getSize() {
+			if (size < 0) {
+				size = 0;
+				try {
+					for (Bundle bundle : item.getBundles("ORIGINAL")) {
+						for (Bitstream bitstream : bundle.getBitstreams()) {
+							size += bitstream.getSize();
+						}
+					}
+				} catch (SQLException e) {
+					log.warn("Cannot determine size of item id=" + item.getID() + " for queue routing", e);
+				}
+			}
+			return size;
+		}
 	}
 }
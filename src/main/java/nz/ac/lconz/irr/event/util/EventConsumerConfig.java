@@ -0,0 +1,342 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable, pre-parsed snapshot of the configuration of the lconz-event module (config/modules/lconz-event.cfg).
+ *
+ * All values are parsed once when the snapshot is created: comma separated values are split into lists and sets,
+ * and the group IDs are converted to ints. Consumers should call {@link #current()} whenever they need a value rather
+ * than holding on to a snapshot, so that changes to the configuration file are picked up without a restart. The
+ * configuration file is checked for changes at most every {@link #CHECK_INTERVAL_MILLIS} milliseconds; when it has
+ * changed, a new snapshot is created and swapped in atomically.
+ */
+public final class EventConsumerConfig {
+	private static final Logger log = Logger.getLogger(EventConsumerConfig.class);
+
+	public static final String MODULE = "lconz-event";
+
+	static final long CHECK_INTERVAL_MILLIS = 10 * 1000;
+
+	private static final String IGNORE_BUNDLES = "queue.bitstreamchange.ignore_bundles";
+	private static final List<String> DEFAULT_IGNORE_BUNDLES = Arrays.asList("TEXT", "THUMBNAIL", "PUBS_DATA");
+	private static final String EMBARGO_NOTIFICATION_GROUP_ID = "embargo.notify.groupid";
+	private static final String DUPLICATE_RECIPIENTS_GROUP_ID = "notify.duplicate.recipients-group-id";
+	private static final String AUTHOR_EMAIL_FIELD = "notify.author.archive.field";
+
+	private static final Pattern VARIABLE = Pattern.compile("\\$\\{([^}]+)\\}");
+
+	private static final AtomicReference<EventConsumerConfig> current = new AtomicReference<EventConsumerConfig>();
+	private static volatile long lastCheck = 0L;
+
+	private final long lastModified;
+	private final Map<String, String> properties;
+	private final Map<String, List<String>> lists;
+	private final Map<String, Set<String>> sets;
+	private final Set<String> ignoreBundles;
+	private final int embargoNotificationGroupId;
+	private final int duplicateRecipientsGroupId;
+	private final String[] authorEmailField;
+	private final List<QueueRoute> queueRoutes;
+	private final ConcurrentMap<String, PatternSetMatcher> matchers = new ConcurrentHashMap<String, PatternSetMatcher>();
+
+	EventConsumerConfig(Properties source, long lastModified) {
+		this.lastModified = lastModified;
+
+		Map<String, String> values = new HashMap<String, String>();
+		Map<String, List<String>> listValues = new HashMap<String, List<String>>();
+		Map<String, Set<String>> setValues = new HashMap<String, Set<String>>();
+		for (String key : source.stringPropertyNames()) {
+			String value = interpolate(source, source.getProperty(key)).trim();
+			values.put(key, value);
+			List<String> list = split(value);
+			listValues.put(key, list);
+			setValues.put(key, Collections.unmodifiableSet(new HashSet<String>(list)));
+		}
+		properties = Collections.unmodifiableMap(values);
+		lists = Collections.unmodifiableMap(listValues);
+		sets = Collections.unmodifiableMap(setValues);
+
+		if (StringUtils.isNotBlank(properties.get(IGNORE_BUNDLES))) {
+			ignoreBundles = sets.get(IGNORE_BUNDLES);
+		} else {
+			ignoreBundles = Collections.unmodifiableSet(new HashSet<String>(DEFAULT_IGNORE_BUNDLES));
+		}
+		embargoNotificationGroupId = parseGroupId(EMBARGO_NOTIFICATION_GROUP_ID);
+		duplicateRecipientsGroupId = parseGroupId(DUPLICATE_RECIPIENTS_GROUP_ID);
+		authorEmailField = parseField(AUTHOR_EMAIL_FIELD);
+
+		List<QueueRoute> routes = new ArrayList<QueueRoute>();
+		for (String routeName : getList(QueueRoute.ROUTES)) {
+			QueueRoute route = QueueRoute.parse(this, routeName);
+			if (route != null) {
+				routes.add(route);
+			}
+		}
+		queueRoutes = Collections.unmodifiableList(routes);
+	}
+
+	/**
+	 * @return the current configuration snapshot, reloaded first if the configuration file has changed
+	 */
+	public static EventConsumerConfig current() {
+		EventConsumerConfig config = current.get();
+		long now = System.currentTimeMillis();
+		if (config == null || now - lastCheck > CHECK_INTERVAL_MILLIS) {
+			lastCheck = now;
+			File file = getConfigFile();
+			long modified = file != null ? file.lastModified() : 0L;
+			if (config == null || modified != config.lastModified) {
+				EventConsumerConfig reloaded = load(file, modified);
+				if (current.compareAndSet(config, reloaded)) {
+					if (config != null) {
+						log.info("Configuration for module " + MODULE + " has changed, reloaded");
+					}
+					config = reloaded;
+				} else {
+					config = current.get();
+				}
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Replace the current snapshot with one created from the given properties, eg for command line tools that want to
+	 * override configuration values. The configuration file will be re-read once it changes.
+	 * @param properties the configuration values to use
+	 */
+	public static void install(Properties properties) {
+		File file = getConfigFile();
+		current.set(new EventConsumerConfig(properties, file != null ? file.lastModified() : 0L));
+		lastCheck = System.currentTimeMillis();
+	}
+
+	private static EventConsumerConfig load(File file, long modified) {
+		Properties properties = null;
+		if (file != null && file.canRead()) {
+			properties = new Properties();
+			try (InputStream in = new FileInputStream(file)) {
+				properties.load(in);
+			} catch (IOException e) {
+				log.warn("Cannot read configuration file " + file.getAbsolutePath() + ", falling back to DSpace configuration", e);
+				properties = null;
+			}
+		}
+		if (properties == null) {
+			properties = ConfigurationManager.getModuleProperties(MODULE);
+		}
+		if (properties == null) {
+			properties = new Properties();
+		}
+		return new EventConsumerConfig(properties, modified);
+	}
+
+	private static File getConfigFile() {
+		String dspaceDir = ConfigurationManager.getProperty("dspace.dir");
+		if (StringUtils.isBlank(dspaceDir)) {
+			return null;
+		}
+		return new File(dspaceDir, "config" + File.separator + "modules" + File.separator + MODULE + ".cfg");
+	}
+
+	private static String interpolate(Properties source, String value) {
+		if (value == null || !value.contains("${")) {
+			return value;
+		}
+		Matcher matcher = VARIABLE.matcher(value);
+		StringBuffer result = new StringBuffer();
+		while (matcher.find()) {
+			String key = matcher.group(1);
+			String replacement = source.getProperty(key);
+			if (replacement == null) {
+				replacement = ConfigurationManager.getProperty(key);
+			}
+			matcher.appendReplacement(result, Matcher.quoteReplacement(replacement != null ? replacement : matcher.group()));
+		}
+		matcher.appendTail(result);
+		return result.toString();
+	}
+
+	private static List<String> split(String value) {
+		if (StringUtils.isBlank(value)) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(Arrays.asList(value.trim().split("\\s*,\\s*")));
+	}
+
+	private int parseGroupId(String key) {
+		String value = properties.get(key);
+		if (StringUtils.isBlank(value)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			log.warn("Group ID " + value + " given for " + key + " isn't numeric, ignoring");
+			return -1;
+		}
+	}
+
+	private String[] parseField(String key) {
+		String value = properties.get(key);
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+		String[] components = value.split("\\.");
+		if (components.length < 2) {
+			log.warn("Metadata field " + value + " given for " + key + " isn't of the form schema.element[.qualifier], ignoring");
+			return null;
+		}
+		return new String[] { components[0], components[1], components.length > 2 ? components[2] : null };
+	}
+
+	/**
+	 * @param key the configuration property
+	 * @return the (trimmed) value of the property, or null if it isn't set
+	 */
+	public String getProperty(String key) {
+		return properties.get(key);
+	}
+
+	/**
+	 * @param key the configuration property
+	 * @param defaultValue the value to return if the property isn't set or is blank
+	 * @return the (trimmed) value of the property, or the default value
+	 */
+	public String getProperty(String key, String defaultValue) {
+		String value = properties.get(key);
+		return StringUtils.isNotBlank(value) ? value : defaultValue;
+	}
+
+	/**
+	 * @param key the configuration property
+	 * @param defaultValue the value to return if the property isn't set or isn't numeric
+	 * @return the value of the property as an int, or the default value
+	 */
+	public int getIntProperty(String key, int defaultValue) {
+		String value = properties.get(key);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param key the configuration property
+	 * @param defaultValue the value to return if the property isn't set
+	 * @return the value of the property as a boolean, or the default value
+	 */
+	public boolean getBooleanProperty(String key, boolean defaultValue) {
+		String value = properties.get(key);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		return "true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value) || "on".equalsIgnoreCase(value);
+	}
+
+	/**
+	 * @param key the configuration property
+	 * @return the comma separated values of the property, in order; an empty list if it isn't set
+	 */
+	public List<String> getList(String key) {
+		List<String> list = lists.get(key);
+		return list != null ? list : Collections.<String>emptyList();
+	}
+
+	/**
+	 * @param key the configuration property
+	 * @return the comma separated values of the property; an empty set if it isn't set
+	 */
+	public Set<String> getSet(String key) {
+		Set<String> set = sets.get(key);
+		return set != null ? set : Collections.<String>emptySet();
+	}
+
+	/**
+	 * Get a matcher for the trigger patterns given in numbered properties ([key].1, [key].2, ..., one pattern each, so
+	 * that patterns may contain commas) or, if there are none, comma separated in the property itself. The matcher is
+	 * compiled once per snapshot and shared by everyone asking for the same property.
+	 * @param key the configuration property
+	 * @param defaultPatterns the patterns to use if the property isn't set
+	 * @return the compiled matcher
+	 */
+	public PatternSetMatcher getMatcher(String key, List<String> defaultPatterns) {
+		PatternSetMatcher matcher = matchers.get(key);
+		if (matcher == null) {
+			List<String> patterns = new ArrayList<String>();
+			for (int i = 1; StringUtils.isNotBlank(properties.get(key + "." + i)); i++) {
+				patterns.add(properties.get(key + "." + i));
+			}
+			if (patterns.isEmpty()) {
+				patterns = lists.containsKey(key) && !lists.get(key).isEmpty() ? lists.get(key) : defaultPatterns;
+			}
+			matcher = new PatternSetMatcher(patterns);
+			PatternSetMatcher existing = matchers.putIfAbsent(key, matcher);
+			if (existing != null) {
+				matcher = existing;
+			}
+		}
+		return matcher;
+	}
+
+	/**
+	 * @return the names of the bundles whose changes should not cause curation tasks to be queued
+	 */
+	public Set<String> getIgnoreBundles() {
+		return ignoreBundles;
+	}
+
+	/**
+	 * @return the ID of the group that receives embargo notifications, or -1 if not configured
+	 */
+	public int getEmbargoNotificationGroupId() {
+		return embargoNotificationGroupId;
+	}
+
+	/**
+	 * @return the ID of the group that receives notifications about duplicate items, or -1 if not configured
+	 */
+	public int getDuplicateRecipientsGroupId() {
+		return duplicateRecipientsGroupId;
+	}
+
+	/**
+	 * @return schema, element and qualifier (may be null) of the author e-mail field, or null if not configured
+	 */
+	public String[] getAuthorEmailField() {
+		return authorEmailField;
+	}
+
+	/**
+	 * @return the curation queue routes, highest priority first; an empty list if none are configured
+	 */
+	public List<QueueRoute> getQueueRoutes() {
+		return queueRoutes;
+	}
+}
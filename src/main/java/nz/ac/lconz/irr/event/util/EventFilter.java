@@ -0,0 +1,77 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.event.Event;
+
+/**
+ * The events an event consumer acts on, in the same syntax as the <code>event.consumer.[name].filters</code> setting in
+ * dspace.cfg, eg <code>Bundle|Bitstream+Add|Remove:Item+Remove</code>: subject types and event types joined by
+ * <code>+</code>, alternatives separated by <code>|</code> and several filters separated by <code>:</code>.
+ * <code>All</code> may be used for either part.
+ *
+ * The filter is compiled once into a table of event type bitmasks indexed by subject type, so that checking an event
+ * takes an array lookup and a bitwise and, without touching the event's subject or the database.
+ */
+public class EventFilter {
+	// one entry per DSpace object type (Constants.BITSTREAM .. Constants.EPERSON and any added later)
+	private static final int MAX_SUBJECT_TYPES = 32;
+
+	private final String filter;
+	private final int[] eventMasks = new int[MAX_SUBJECT_TYPES];
+
+	/**
+	 * @param filter the filter
+	 * @throws IllegalArgumentException if the filter contains an unknown subject or event type
+	 */
+	public EventFilter(String filter) {
+		this.filter = filter;
+		for (String part : filter.trim().split("\\s*:\\s*")) {
+			String[] typesAndEvents = part.split("\\+");
+			if (typesAndEvents.length != 2) {
+				throw new IllegalArgumentException("Event filter " + filter + ": expected subject types+event types, got " + part);
+			}
+			int subjectMask = 0;
+			for (String subjectType : typesAndEvents[0].split("\\|")) {
+				int mask = Event.parseObjectType(subjectType.trim());
+				if (mask == 0) {
+					throw new IllegalArgumentException("Event filter " + filter + ": unknown subject type " + subjectType);
+				}
+				subjectMask |= mask;
+			}
+			int eventMask = 0;
+			for (String eventType : typesAndEvents[1].split("\\|")) {
+				int mask = Event.parseEventType(eventType.trim());
+				if (mask == 0) {
+					throw new IllegalArgumentException("Event filter " + filter + ": unknown event type " + eventType);
+				}
+				eventMask |= mask;
+			}
+			for (int subjectType = 0; subjectType < MAX_SUBJECT_TYPES; subjectType++) {
+				if ((subjectMask & (1 << subjectType)) != 0) {
+					eventMasks[subjectType] |= eventMask;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param event the event to check
+	 * @return whether the event's subject type and event type are covered by this filter
+	 */
+	public boolean matches(Event event) {
+		return matches(event.getSubjectType(), event.getEventType());
+	}
+
+	/**
+	 * @param subjectType the subject type (one of the object type constants in {@link org.dspace.core.Constants})
+	 * @param eventType the event type (one of the event type constants in {@link Event})
+	 * @return whether the combination is covered by this filter
+	 */
+	public boolean matches(int subjectType, int eventType) {
+		return subjectType >= 0 && subjectType < MAX_SUBJECT_TYPES && (eventMasks[subjectType] & eventType) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return filter;
+	}
+}
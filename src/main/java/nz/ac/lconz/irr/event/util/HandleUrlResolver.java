@@ -0,0 +1,119 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.handle.HandleManager;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the URLs for handles used in notification e-mails without going to the database.
+ *
+ * For handles with this repository's prefix (<code>handle.prefix</code>, plus any <code>handle.additional.prefixes</code>
+ * from dspace.cfg), the URL is <code>dspace.url</code> + /handle/ + handle, exactly as
+ * {@link HandleManager#resolveToURL(Context, String)} would build it, but without first checking that the handle
+ * exists in the handle table. All other handles are resolved by HandleManager, and the results are kept in a least
+ * recently used cache of at most <code>cache.handles.size</code> entries (default: 1000).
+ */
+public class HandleUrlResolver {
+	private static final String DEFAULT_CANONICAL_PREFIX = "http://hdl.handle.net/";
+
+	private static volatile Settings settings;
+
+	private static final Map<String, String> foreignUrls = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > EventConsumerConfig.current().getIntProperty("cache.handles.size", 1000);
+		}
+	};
+
+	/**
+	 * @param ctx the DSpace context, used for the database lookup of foreign handles
+	 * @param handle the handle
+	 * @return the URL of the object with the handle, or null if the handle is null or cannot be resolved
+	 * @throws SQLException if a foreign handle cannot be looked up
+	 */
+	public static String resolveToURL(Context ctx, String handle) throws SQLException {
+		if (handle == null) {
+			return null;
+		}
+		Settings current = getSettings();
+		int slash = handle.indexOf('/');
+		if (slash > 0 && current.localPrefixes.contains(handle.substring(0, slash))) {
+			return current.baseUrl + handle;
+		}
+
+		synchronized (foreignUrls) {
+			String url = foreignUrls.get(handle);
+			if (url != null) {
+				return url;
+			}
+		}
+		String url = HandleManager.resolveToURL(ctx, handle);
+		if (url != null) {
+			synchronized (foreignUrls) {
+				foreignUrls.put(handle, url);
+			}
+		}
+		return url;
+	}
+
+	/**
+	 * @param handle the handle
+	 * @return the canonical form (eg http://hdl.handle.net/123456789/1) of the handle
+	 */
+	public static String getCanonicalForm(String handle) {
+		return getSettings().canonicalPrefix + handle;
+	}
+
+	/**
+	 * Forget the configuration and all cached URLs, eg after dspace.cfg has been changed.
+	 */
+	public static void clear() {
+		settings = null;
+		synchronized (foreignUrls) {
+			foreignUrls.clear();
+		}
+	}
+
+	private static Settings getSettings() {
+		Settings current = settings;
+		if (current == null) {
+			current = new Settings();
+			settings = current;
+		}
+		return current;
+	}
+
+	/**
+	 * The parts of the DSpace configuration needed to build URLs.
+	 */
+	private static class Settings {
+		private final String baseUrl;
+		private final String canonicalPrefix;
+		private final Set<String> localPrefixes = new HashSet<String>();
+
+		Settings() {
+			baseUrl = ConfigurationManager.getProperty("dspace.url") + "/handle/";
+			String prefix = ConfigurationManager.getProperty("handle.canonical.prefix");
+			canonicalPrefix = StringUtils.isNotBlank(prefix) ? prefix : DEFAULT_CANONICAL_PREFIX;
+			String localPrefix = ConfigurationManager.getProperty("handle.prefix");
+			if (StringUtils.isNotBlank(localPrefix)) {
+				localPrefixes.add(localPrefix.trim());
+			}
+			String additionalPrefixes = ConfigurationManager.getProperty("handle.additional.prefixes");
+			if (StringUtils.isNotBlank(additionalPrefixes)) {
+				for (String additionalPrefix : additionalPrefixes.split(",")) {
+					if (StringUtils.isNotBlank(additionalPrefix)) {
+						localPrefixes.add(additionalPrefix.trim());
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.event.Event;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per-context memo of which item an event subject (item, bundle or bitstream) belongs to.
+ *
+ * Resolving the owning item of a bundle or bitstream means loading the subject and then its parent, which costs a
+ * database query each time. Consumers look at the same subjects over and over while the events of a commit are being
+ * dispatched (once to decide whether an event is applicable, again when acting on it, and once more in every other
+ * consumer), so the result is remembered per context, keyed by subject type and ID, until {@link #clear(Context)} is
+ * called from the consumer's end(). Contexts can live on for many commits (DSpace only calls finish() when the event
+ * dispatcher is torn down), so the memo must not outlast the commit; consumers clear it again in finish() in case end()
+ * wasn't reached.
+ *
+ * Only the ID of the owning item is remembered, not the item itself; the item is looked up through the context's own
+ * object cache, so that callers always see its current state (eg whether it is archived).
+ */
+public class ItemResolutionCache {
+	private static final Resolution NONE = new Resolution(-1, null);
+
+	private static final Map<Context, Map<String, Resolution>> memos = new WeakHashMap<Context, Map<String, Resolution>>();
+
+	/**
+	 * @param ctx the DSpace context the event belongs to
+	 * @param event the event whose subject to resolve
+	 * @return the owning item and name of the event's subject; never null
+	 * @throws SQLException if the subject or its parent cannot be loaded
+	 */
+	public static Resolution resolve(Context ctx, Event event) throws SQLException {
+		String key = event.getSubjectType() + ":" + event.getSubjectID();
+		Map<String, Resolution> memo;
+		synchronized (memos) {
+			memo = memos.get(ctx);
+			if (memo == null) {
+				memo = new HashMap<String, Resolution>();
+				memos.put(ctx, memo);
+			}
+		}
+		synchronized (memo) {
+			Resolution resolution = memo.get(key);
+			if (resolution == null) {
+				resolution = load(ctx, event);
+				memo.put(key, resolution);
+			}
+			return resolution;
+		}
+	}
+
+	/**
+	 * Forget everything remembered for the given context.
+	 * @param ctx the DSpace context
+	 */
+	public static void clear(Context ctx) {
+		synchronized (memos) {
+			memos.remove(ctx);
+		}
+	}
+
+	private static Resolution load(Context ctx, Event event) throws SQLException {
+		DSpaceObject subject = event.getSubject(ctx);
+		if (subject == null) {
+			return NONE;
+		}
+		switch (subject.getType()) {
+			case Constants.ITEM:
+				return new Resolution(subject.getID(), subject.getName());
+			case Constants.BUNDLE:
+			case Constants.BITSTREAM:
+				return new Resolution(findItemId(subject.getParentObject()), subject.getName());
+			default:
+				return new Resolution(-1, subject.getName());
+		}
+	}
+
+	private static int findItemId(DSpaceObject parent) {
+		if (parent != null && parent.getType() == Constants.ITEM) {
+			return parent.getID();
+		}
+		return -1;
+	}
+
+	/**
+	 * The owning item and name of one event subject.
+	 */
+	public static class Resolution {
+		private final int itemId;
+		private final String subjectName;
+
+		Resolution(int itemId, String subjectName) {
+			this.itemId = itemId;
+			this.subjectName = subjectName;
+		}
+
+		/**
+		 * @param ctx the DSpace context
+		 * @return the item the subject belongs to (or the subject itself if it is an item), null if there is none
+		 * @throws SQLException if the item cannot be loaded
+		 */
+		public Item getItem(Context ctx) throws SQLException {
+			if (itemId < 0) {
+				return null;
+			}
+			return Item.find(ctx, itemId);
+		}
+
+		/**
+		 * @return the name of the subject (eg the bundle name), null if it has none or no longer exists
+		 */
+		public String getSubjectName() {
+			return subjectName;
+		}
+	}
+}
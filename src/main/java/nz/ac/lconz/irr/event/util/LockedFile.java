@@ -0,0 +1,129 @@
+package nz.ac.lconz.irr.event.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock on a file that is shared by all webapps and command line tools of a DSpace installation, held from
+ * {@link #lock(File)} until {@link #close()}, for use in try-with-resources.
+ *
+ * File locks belong to the JVM as a whole and only exclude other processes, so threads in this JVM are first excluded
+ * by an in-JVM lock per file. Other webapps in the same JVM have their own copy of this class; they find the file lock
+ * taken and wait until it is released.
+ */
+public class LockedFile implements Closeable {
+	private static final long LOCK_RETRY_MILLIS = 50;
+
+	// absolute path -> in-JVM lock for that file
+	private static final ConcurrentMap<String, ReentrantLock> jvmLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+	private final ReentrantLock jvmLock;
+	private final RandomAccessFile raf;
+
+	private LockedFile(ReentrantLock jvmLock, RandomAccessFile raf) {
+		this.jvmLock = jvmLock;
+		this.raf = raf;
+	}
+
+	/**
+	 * Lock the file, creating it if it doesn't exist yet; waits until the lock is available.
+	 * @param file the file to lock
+	 * @return the lock, to be closed when done
+	 * @throws IOException if the file cannot be opened or locked
+	 */
+	public static LockedFile lock(File file) throws IOException {
+		ReentrantLock jvmLock = getJvmLock(file);
+		jvmLock.lock();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			acquire(raf.getChannel(), file);
+			return new LockedFile(jvmLock, raf);
+		} catch (IOException | RuntimeException e) {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ce) {
+					e.addSuppressed(ce);
+				}
+			}
+			jvmLock.unlock();
+			throw e;
+		}
+	}
+
+	private static ReentrantLock getJvmLock(File file) {
+		String path = file.getAbsolutePath();
+		ReentrantLock jvmLock = jvmLocks.get(path);
+		if (jvmLock == null) {
+			ReentrantLock created = new ReentrantLock();
+			jvmLock = jvmLocks.putIfAbsent(path, created);
+			if (jvmLock == null) {
+				jvmLock = created;
+			}
+		}
+		return jvmLock;
+	}
+
+	private static FileLock acquire(FileChannel channel, File file) throws IOException {
+		while (true) {
+			try {
+				return channel.lock();
+			} catch (OverlappingFileLockException e) {
+				// held by another webapp in this JVM
+				try {
+					Thread.sleep(LOCK_RETRY_MILLIS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for lock on " + file.getAbsolutePath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the channel of the locked file, for files that are changed in place
+	 */
+	public FileChannel getChannel() {
+		return raf.getChannel();
+	}
+
+	/**
+	 * Release the lock (closing the file releases the file lock).
+	 */
+	public void close() throws IOException {
+		try {
+			raf.close();
+		} finally {
+			jvmLock.unlock();
+		}
+	}
+
+	/**
+	 * Replace the contents of a file as a whole: the new contents are written next to it and then renamed over it, so
+	 * that a crash or a full disk leaves either the old or the new contents. Callers should hold a lock on a separate
+	 * lock file, since the file itself is replaced.
+	 * @param file the file to replace
+	 * @param content the new contents
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void replace(File file, byte[] content) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			out.write(content);
+			out.getFD().sync();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Cannot move " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+	}
+}
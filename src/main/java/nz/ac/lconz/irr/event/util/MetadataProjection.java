@@ -0,0 +1,164 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact view of the values of just those metadata fields of an item that the consumers and hooks use, built with a
+ * single pass over the item's metadata and shared by everyone looking at the same item in the same context.
+ *
+ * Every call to {@link Item#getMetadata(String, String, String, String)} scans all of the item's metadata and copies
+ * the matches into a new array, which adds up for items with many (eg provenance) values when several fields are
+ * needed per event. Consumers register the fields they need with {@link #register(String...)}; the first lookup for an
+ * item then collects the values of all registered fields at once. Asking for a field that isn't registered yet
+ * registers it and builds the projection again.
+ *
+ * Fields are given as schema.element (no qualifier), schema.element.qualifier or schema.element.* (any qualifier), as
+ * for {@link Item#getMetadataByMetadataString(String)}. Projections are dropped by {@link #clear(Context)}, which
+ * consumers call from end(), and by {@link #invalidate(Context, Item)}, which must be called after changing an item's
+ * metadata.
+ */
+public class MetadataProjection {
+	private static final Set<String> registered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private static final Map<Context, Map<Integer, MetadataProjection>> projections = new WeakHashMap<Context, Map<Integer, MetadataProjection>>();
+
+	private final Set<String> fields;
+	private final Map<String, List<String>> values;
+
+	private MetadataProjection(Item item, Set<String> fields) {
+		this.fields = fields;
+		Map<String, List<String>> collected = new HashMap<String, List<String>>();
+		for (Metadatum value : item.getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY)) {
+			String field = value.schema + "." + value.element;
+			if (value.qualifier != null) {
+				add(collected, field + "." + value.qualifier, value.value);
+			} else {
+				add(collected, field, value.value);
+			}
+			add(collected, field + ".*", value.value);
+		}
+		this.values = collected;
+	}
+
+	private void add(Map<String, List<String>> collected, String field, String value) {
+		if (!fields.contains(field) || value == null) {
+			return;
+		}
+		List<String> fieldValues = collected.get(field);
+		if (fieldValues == null) {
+			fieldValues = new ArrayList<String>(1);
+			collected.put(field, fieldValues);
+		}
+		fieldValues.add(value);
+	}
+
+	/**
+	 * Register fields that should be included in every projection.
+	 * @param fields the fields, eg dc.title or dc.contributor.author
+	 */
+	public static void register(String... fields) {
+		for (String field : fields) {
+			if (field != null) {
+				registered.add(field);
+			}
+		}
+	}
+
+	/**
+	 * @param ctx the DSpace context
+	 * @param item the item
+	 * @return the projection of the item's metadata, shared with other users of the same item in the same context
+	 */
+	public static MetadataProjection get(Context ctx, Item item) {
+		Map<Integer, MetadataProjection> contextProjections;
+		synchronized (projections) {
+			contextProjections = projections.get(ctx);
+			if (contextProjections == null) {
+				contextProjections = new HashMap<Integer, MetadataProjection>();
+				projections.put(ctx, contextProjections);
+			}
+		}
+		synchronized (contextProjections) {
+			MetadataProjection projection = contextProjections.get(item.getID());
+			if (projection == null || !projection.fields.containsAll(registered)) {
+				projection = new MetadataProjection(item, new HashSet<String>(registered));
+				contextProjections.put(item.getID(), projection);
+			}
+			return projection;
+		}
+	}
+
+	/**
+	 * @param ctx the DSpace context
+	 * @param item the item
+	 * @param field the field, eg dc.title
+	 * @return the values of the field, in order; an empty list if there are none
+	 */
+	public static List<String> getValues(Context ctx, Item item, String field) {
+		MetadataProjection projection = get(ctx, item);
+		if (!projection.fields.contains(field)) {
+			register(field);
+			projection = get(ctx, item);
+		}
+		return projection.getValues(field);
+	}
+
+	/**
+	 * @param ctx the DSpace context
+	 * @param item the item
+	 * @param field the field, eg dc.title
+	 * @return the first value of the field, or null if there is none
+	 */
+	public static String getFirstValue(Context ctx, Item item, String field) {
+		List<String> fieldValues = getValues(ctx, item, field);
+		return fieldValues.isEmpty() ? null : fieldValues.get(0);
+	}
+
+	/**
+	 * Forget the projection of one item, eg after its metadata has been changed.
+	 * @param ctx the DSpace context
+	 * @param item the item
+	 */
+	public static void invalidate(Context ctx, Item item) {
+		Map<Integer, MetadataProjection> contextProjections;
+		synchronized (projections) {
+			contextProjections = projections.get(ctx);
+		}
+		if (contextProjections != null) {
+			synchronized (contextProjections) {
+				contextProjections.remove(item.getID());
+			}
+		}
+	}
+
+	/**
+	 * Forget all projections for the given context.
+	 * @param ctx the DSpace context
+	 */
+	public static void clear(Context ctx) {
+		synchronized (projections) {
+			projections.remove(ctx);
+		}
+	}
+
+	/**
+	 * @param field a field included in this projection
+	 * @return the values of the field, in order; an empty list if there are none
+	 */
+	public List<String> getValues(String field) {
+		List<String> fieldValues = values.get(field);
+		return fieldValues != null ? Collections.unmodifiableList(fieldValues) : Collections.<String>emptyList();
+	}
+}
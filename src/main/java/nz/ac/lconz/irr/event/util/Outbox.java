@@ -0,0 +1,286 @@
+package nz.ac.lconz.irr.event.util;
+
+import nz.ac.lconz.irr.event.mail.QueuedMail;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.eperson.EPerson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local log of the side effects of event consumers (curation tasks to queue, e-mails to send), so that
+ * committing a context only costs an append to a memory-mapped file. The side effects are applied in the background by
+ * an {@link OutboxDrainer}.
+ *
+ * Each outbox writes to its own directory below <code>outbox.dir</code> (default: [dspace]/var/lconz-outbox), which
+ * it keeps locked for as long as it is running. The log is split into segments of <code>outbox.segment-size</code>
+ * bytes (default: 4 MB). Each record is framed as
+ * <pre>[payload length][sequence number][type][payload][CRC32 of sequence number, type and payload]</pre>
+ * and the length is written last, so a record that was only partly written when the process died is never read. With
+ * <code>outbox.sync</code> (default: true), each append is forced to disk before the commit carries on.
+ *
+ * Directories left behind by outboxes that are no longer running (eg after a crash) are picked up and drained by any
+ * other running outbox, or by running {@link OutboxDrainer} from the command line.
+ */
+public class Outbox {
+	private static final Logger log = Logger.getLogger(Outbox.class);
+
+	static final byte CURATION = 1;
+	static final byte MAIL = 2;
+
+	// payload length, sequence number, type
+	static final int HEADER_SIZE = 4 + 8 + 1;
+	// CRC32
+	static final int TRAILER_SIZE = 4;
+	static final String LOCK_FILE = "lock";
+	static final String SEGMENT_SUFFIX = ".log";
+
+	private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static Outbox instance;
+
+	private final File dir;
+	private final int segmentSize;
+	private final boolean sync;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+	private final OutboxDrainer drainer;
+
+	private int segment = -1;
+	private MappedByteBuffer buffer;
+	private long nextSequence = 1;
+	private boolean closed = false;
+
+	Outbox(File baseDir, int segmentSize, boolean sync) throws IOException {
+		this.dir = new File(baseDir, UUID.randomUUID().toString());
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create outbox directory " + dir.getAbsolutePath());
+		}
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+		lock = lockFile.getChannel().lock();
+		drainer = new OutboxDrainer(baseDir, this);
+	}
+
+	/**
+	 * @return whether consumers should write their side effects to the outbox (<code>outbox.enabled</code>)
+	 */
+	public static boolean isEnabled() {
+		return EventConsumerConfig.current().getBooleanProperty("outbox.enabled", false);
+	}
+
+	static File getBaseDir() {
+		String defaultDir = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-outbox";
+		return new File(EventConsumerConfig.current().getProperty("outbox.dir", defaultDir));
+	}
+
+	/**
+	 * @return the outbox for this JVM / webapp, started (together with its drainer) on first use
+	 * @throws IOException if the outbox directory cannot be set up
+	 */
+	public static synchronized Outbox getInstance() throws IOException {
+		if (instance == null) {
+			EventConsumerConfig config = EventConsumerConfig.current();
+			int segmentSize = Math.max(64 * 1024, config.getIntProperty("outbox.segment-size", DEFAULT_SEGMENT_SIZE));
+			instance = new Outbox(getBaseDir(), segmentSize, config.getBooleanProperty("outbox.sync", true));
+			instance.drainer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					instance.shutdown();
+				}
+			}));
+			log.info("Started outbox in " + instance.dir.getAbsolutePath());
+		}
+		return instance;
+	}
+
+	/**
+	 * Append the entries of a curation batch to the outbox and empty the batch.
+	 * @param ctx the DSpace context, used to determine the user on whose behalf the tasks are queued
+	 * @param batch the batch
+	 * @return false if the outbox has been shut down, in which case the batch is left as it was
+	 * @throws IOException if the entries cannot be written to the outbox
+	 */
+	public boolean append(Context ctx, CurationBatch batch) throws IOException {
+		if (batch.isEmpty()) {
+			batch.handedOver();
+			return true;
+		}
+		EPerson user = ctx.getCurrentUser();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeUTF(user != null ? user.getName() : "");
+			out.writeLong(System.currentTimeMillis());
+			out.writeBoolean(batch.isSkipPending());
+			out.writeObject(batch.entries());
+		}
+		if (append(CURATION, bytes.toByteArray()) < 0) {
+			return false;
+		}
+		batch.handedOver();
+		batch.clear();
+		return true;
+	}
+
+	/**
+	 * Append a rendered e-mail message to the outbox.
+	 * @param mail the message
+	 * @return false if the outbox has been shut down
+	 * @throws IOException if the message cannot be written to the outbox
+	 */
+	public boolean append(QueuedMail mail) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(mail);
+		}
+		return append(MAIL, bytes.toByteArray()) >= 0;
+	}
+
+	/**
+	 * @return the sequence number of the record, or -1 if the outbox has been shut down
+	 */
+	private long append(byte type, byte[] payload) throws IOException {
+		long sequence;
+		synchronized (this) {
+			if (closed) {
+				return -1;
+			}
+			int recordSize = HEADER_SIZE + payload.length + TRAILER_SIZE;
+			// keep room for the zero length that marks the end of the segment
+			if (buffer == null || buffer.remaining() < recordSize + 4) {
+				roll(recordSize + 4);
+			}
+			sequence = nextSequence++;
+			int start = buffer.position();
+			buffer.position(start + 4);
+			buffer.putLong(sequence);
+			buffer.put(type);
+			buffer.put(payload);
+			buffer.putInt(checksum(sequence, type, payload));
+			// publish the record only once it is complete
+			buffer.putInt(start, payload.length);
+			if (sync) {
+				buffer.force();
+			}
+		}
+		drainer.wake();
+		return sequence;
+	}
+
+	private void roll(int minSize) throws IOException {
+		if (buffer != null) {
+			buffer.force();
+		}
+		segment++;
+		File file = segmentFile(dir, segment);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			// the mapping stays valid after the channel is closed; new space is zero-filled
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minSize));
+		}
+		log.debug("Started outbox segment " + file.getAbsolutePath());
+	}
+
+	/**
+	 * @return the directory this outbox writes to
+	 */
+	File getDir() {
+		return dir;
+	}
+
+	/**
+	 * @return the current segment and the position up to which it has been written, for the drainer
+	 */
+	synchronized int[] getWritePosition() {
+		return new int[] { segment, buffer != null ? buffer.position() : 0 };
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	void shutdown() {
+		synchronized (this) {
+			closed = true;
+			if (buffer != null) {
+				buffer.force();
+			}
+		}
+		// apply what is left, and only leave the directory behind if that didn't work
+		if (drainer.stop()) {
+			OutboxDrainer.delete(dir);
+		}
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			log.warn("Cannot release outbox lock in " + dir.getAbsolutePath(), e);
+		}
+		if (!dir.delete() && dir.exists()) {
+			log.info("Outbox " + dir.getAbsolutePath() + " still holds records, they will be applied by the next outbox to start");
+		}
+	}
+
+	static File segmentFile(File dir, int segment) {
+		return new File(dir, String.format("%010d", segment) + SEGMENT_SUFFIX);
+	}
+
+	static int checksum(long sequence, byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(9).putLong(sequence).put(type).array());
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Read the record at the current position of the buffer, and move past it.
+	 * @param buffer a segment
+	 * @param limit the position up to which the segment has been written
+	 * @return the record, or null if there is no complete record at the current position
+	 */
+	static Record read(ByteBuffer buffer, int limit) {
+		int start = buffer.position();
+		if (start + HEADER_SIZE > limit) {
+			return null;
+		}
+		int length = buffer.getInt(start);
+		if (length <= 0 || start + HEADER_SIZE + length + TRAILER_SIZE > limit) {
+			return null;
+		}
+		long sequence = buffer.getLong(start + 4);
+		byte type = buffer.get(start + 12);
+		byte[] payload = new byte[length];
+		buffer.position(start + HEADER_SIZE);
+		buffer.get(payload);
+		int crc = buffer.getInt();
+		if (crc != checksum(sequence, type, payload)) {
+			log.warn("Outbox record " + sequence + " at offset " + start + " is damaged, ignoring the rest of the segment");
+			buffer.position(start);
+			return null;
+		}
+		return new Record(sequence, type, payload);
+	}
+
+	static class Record {
+		final long sequence;
+		final byte type;
+		final byte[] payload;
+
+		Record(long sequence, byte type, byte[] payload) {
+			this.sequence = sequence;
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package nz.ac.lconz.irr.event.util;
+
+import nz.ac.lconz.irr.event.mail.MailDispatcher;
+import nz.ac.lconz.irr.event.mail.QueuedMail;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies the records in {@link Outbox} directories: queues the curation tasks and hands the e-mails to the
+ * {@link MailDispatcher}.
+ *
+ * Progress is kept in a checkpoint file per directory (segment, offset and sequence number of the last applied
+ * record), which is updated after every record, and segments are deleted once all their records have been applied.
+ * After a crash, at most the one record following the checkpoint may have been applied already; it is replayed so that
+ * it has no further effect where that can be detected: curation tasks already waiting in their queue are skipped, and
+ * e-mails are spooled under a name derived from the record, which the {@link MailDispatcher} refuses while a message of
+ * that name is in the spool or has been sent recently (<code>mail.dispatch.sent-retention</code>). Delivery is
+ * therefore at least once: curation tasks that have already been run, and an e-mail whose sending was interrupted
+ * between the mail server accepting it and the dispatcher recording it, are applied again.
+ *
+ * Each running outbox has a drainer thread for its own directory, which is woken up by every append and otherwise
+ * checks every <code>outbox.drain.interval</code> milliseconds (default: 1000). It also picks up directories whose
+ * outbox is no longer running. Run via [dspace]/bin/dspace dsrun nz.ac.lconz.irr.event.util.OutboxDrainer to apply
+ * those from the command line.
+ */
+public class OutboxDrainer implements Runnable {
+	private static final Logger log = Logger.getLogger(OutboxDrainer.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final long ORPHAN_CHECK_MILLIS = 60 * 1000;
+
+	private final File baseDir;
+	private final Outbox outbox;
+	private final Object signal = new Object();
+	// directories where applying a record failed: the record may have been applied in part
+	private final Set<File> uncertain = new HashSet<File>();
+
+	private Thread thread;
+	private volatile boolean running = false;
+	private boolean woken = false;
+	private long lastOrphanCheck = 0L;
+
+	/**
+	 * @param baseDir the directory holding the outbox directories
+	 * @param outbox the outbox whose directory to drain continuously; null to only drain abandoned directories
+	 */
+	OutboxDrainer(File baseDir, Outbox outbox) {
+		this.baseDir = baseDir;
+		this.outbox = outbox;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("h", "help", false, "print this help message");
+		CommandLine line;
+		try {
+			line = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("OutboxDrainer", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("OutboxDrainer", options);
+			return;
+		}
+		int applied = new OutboxDrainer(Outbox.getBaseDir(), null).drainOrphans();
+		System.out.println("Applied " + applied + " outbox records");
+	}
+
+	void start() {
+		running = true;
+		thread = new Thread(this, "lconz-outbox-drainer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the drainer thread and apply whatever is left in the outbox's own directory.
+	 * @return true if all records of the outbox have been applied
+	 */
+	boolean stop() {
+		running = false;
+		wake();
+		if (thread != null) {
+			try {
+				thread.join(10 * 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			return drain(outbox.getDir(), true);
+		} catch (IOException e) {
+			log.error("Cannot apply the remaining records in outbox " + outbox.getDir().getAbsolutePath(), e);
+			return false;
+		}
+	}
+
+	void wake() {
+		synchronized (signal) {
+			woken = true;
+			signal.notifyAll();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				drain(outbox.getDir(), false);
+				long now = System.currentTimeMillis();
+				if (now - lastOrphanCheck > ORPHAN_CHECK_MILLIS) {
+					lastOrphanCheck = now;
+					drainOrphans();
+				}
+			} catch (IOException | RuntimeException e) {
+				log.error("Problem applying outbox records", e);
+			}
+			long interval = Math.max(10, EventConsumerConfig.current().getIntProperty("outbox.drain.interval", 1000));
+			synchronized (signal) {
+				try {
+					if (!woken && running) {
+						signal.wait(interval);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				woken = false;
+			}
+		}
+	}
+
+	/**
+	 * Apply the records in all directories whose outbox is no longer running, and delete the directories.
+	 * @return the number of records applied
+	 */
+	synchronized int drainOrphans() {
+		File[] dirs = baseDir.listFiles();
+		if (dirs == null) {
+			return 0;
+		}
+		int applied = 0;
+		long now = System.currentTimeMillis();
+		for (File dir : dirs) {
+			if (!dir.isDirectory() || (outbox != null && dir.equals(outbox.getDir()))) {
+				continue;
+			}
+			if (now - dir.lastModified() < ORPHAN_CHECK_MILLIS) {
+				continue; // may belong to an outbox that is only just starting up
+			}
+			try (RandomAccessFile lockFile = new RandomAccessFile(new File(dir, Outbox.LOCK_FILE), "rw");
+			     FileLock lock = lockFile.getChannel().tryLock()) {
+				if (lock == null) {
+					continue; // its outbox is still running in another process
+				}
+				long before = readCheckpoint(dir).sequence;
+				// anything after the checkpoint may have been applied just before the outbox went away
+				uncertain.add(dir);
+				boolean complete = drain(dir, true);
+				applied += readCheckpoint(dir).sequence - before;
+				if (complete) {
+					uncertain.remove(dir);
+					log.info("Applied the remaining records of outbox " + dir.getAbsolutePath());
+					delete(dir);
+				}
+			} catch (OverlappingFileLockException e) {
+				// its outbox is still running in this JVM (eg in another webapp)
+			} catch (IOException e) {
+				log.error("Cannot apply the records of outbox " + dir.getAbsolutePath(), e);
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * Apply the records following the checkpoint of one directory.
+	 * @param dir the outbox directory
+	 * @param finished whether its outbox has stopped writing, so that the last segment can be deleted too
+	 * @return true if all records have been applied
+	 */
+	private synchronized boolean drain(File dir, boolean finished) throws IOException {
+		Checkpoint checkpoint = readCheckpoint(dir);
+		while (true) {
+			File segmentFile = Outbox.segmentFile(dir, checkpoint.segment);
+			if (!segmentFile.isFile()) {
+				if (Outbox.segmentFile(dir, checkpoint.segment + 1).isFile()) {
+					checkpoint = new Checkpoint(checkpoint.segment + 1, 0, checkpoint.sequence);
+					continue;
+				}
+				return true;
+			}
+
+			int limit;
+			boolean current = false;
+			if (outbox != null && dir.equals(outbox.getDir()) && !finished) {
+				int[] position = outbox.getWritePosition();
+				if (position[0] < checkpoint.segment) {
+					return true;
+				}
+				current = position[0] == checkpoint.segment;
+				limit = current ? position[1] : Integer.MAX_VALUE;
+			} else {
+				limit = Integer.MAX_VALUE;
+			}
+
+			try (RandomAccessFile raf = new RandomAccessFile(segmentFile, "r"); FileChannel channel = raf.getChannel()) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				limit = (int) Math.min(limit, channel.size());
+				buffer.position(checkpoint.offset);
+				Outbox.Record record;
+				while ((record = Outbox.read(buffer, limit)) != null) {
+					if (record.sequence > checkpoint.sequence) {
+						if (!apply(dir, record)) {
+							return false;
+						}
+					}
+					checkpoint = new Checkpoint(checkpoint.segment, buffer.position(), record.sequence);
+					writeCheckpoint(dir, checkpoint);
+				}
+			}
+
+			if (current) {
+				return false; // still being written to
+			}
+			// all records of this segment have been applied
+			if (!segmentFile.delete()) {
+				log.warn("Cannot delete applied outbox segment " + segmentFile.getAbsolutePath());
+			}
+			checkpoint = new Checkpoint(checkpoint.segment + 1, 0, checkpoint.sequence);
+			writeCheckpoint(dir, checkpoint);
+		}
+	}
+
+	/**
+	 * @return false if the record could not be applied and should be tried again later
+	 */
+	private boolean apply(File dir, Outbox.Record record) {
+		boolean replay = uncertain.contains(dir);
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record.payload))) {
+			switch (record.type) {
+				case Outbox.CURATION:
+					String epersonId = in.readUTF();
+					long submitTime = in.readLong();
+					boolean skipPending = in.readBoolean();
+					@SuppressWarnings("unchecked")
+					Map<String, Map<String, Set<String>>> entries = (Map<String, Map<String, Set<String>>>) in.readObject();
+					CurationBatch batch = new CurationBatch();
+					// tasks queued before the failure or crash are still waiting -> don't queue them again
+					batch.setSkipPending(skipPending || replay);
+					for (Map.Entry<String, Map<String, Set<String>>> queueEntries : entries.entrySet()) {
+						for (Map.Entry<String, Set<String>> objectTasks : queueEntries.getValue().entrySet()) {
+							for (String task : objectTasks.getValue()) {
+								batch.add(objectTasks.getKey(), task, queueEntries.getKey());
+							}
+						}
+					}
+					batch.write(epersonId, submitTime);
+					break;
+				case Outbox.MAIL:
+					QueuedMail mail = (QueuedMail) in.readObject();
+					// the name is the same every time the record is applied, so the message is only spooled once
+					MailDispatcher.getInstance().enqueue(mail, "outbox-" + dir.getName() + "-" + record.sequence);
+					break;
+				default:
+					log.error("Unknown type " + record.type + " of outbox record " + record.sequence + " in " + dir.getAbsolutePath() + ", skipping it");
+			}
+		} catch (ClassNotFoundException | ClassCastException e) {
+			log.error("Cannot read outbox record " + record.sequence + " in " + dir.getAbsolutePath() + ", skipping it", e);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Cannot apply outbox record " + record.sequence + " in " + dir.getAbsolutePath() + ", will try again", e);
+			uncertain.add(dir);
+			return false;
+		}
+		uncertain.remove(dir);
+		return true;
+	}
+
+	private Checkpoint readCheckpoint(File dir) throws IOException {
+		File file = new File(dir, CHECKPOINT_FILE);
+		if (!file.isFile()) {
+			return new Checkpoint(0, 0, 0L);
+		}
+		String[] fields = new String(Files.readAllBytes(file.toPath()), UTF8).trim().split(" ");
+		try {
+			return new Checkpoint(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Cannot read outbox checkpoint " + file.getAbsolutePath(), e);
+		}
+	}
+
+	private void writeCheckpoint(File dir, Checkpoint checkpoint) throws IOException {
+		File file = new File(dir, CHECKPOINT_FILE);
+		File temp = new File(dir, CHECKPOINT_FILE + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			out.write((checkpoint.segment + " " + checkpoint.offset + " " + checkpoint.sequence + "\n").getBytes(UTF8));
+			out.getFD().sync();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Cannot move " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Delete an outbox directory and everything in it.
+	 */
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					log.warn("Cannot delete " + file.getAbsolutePath());
+				}
+			}
+		}
+		dir.delete();
+	}
+
+	private static class Checkpoint {
+		final int segment;
+		final int offset;
+		final long sequence;
+
+		Checkpoint(int segment, int offset, long sequence) {
+			this.segment = segment;
+			this.offset = offset;
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.Metadatum;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches text against a set of trigger patterns, compiled once into a single regular expression so that each value
+ * is scanned only once no matter how many patterns there are.
+ *
+ * Patterns are literal phrases, unless they start with <code>regex:</code>, in which case the rest of the pattern is
+ * used as a regular expression. Invalid regular expressions are logged and left out. Regular expressions that use
+ * backreferences (whose group numbers would be off in the combined expression), or that cannot be combined with the
+ * others, are matched on their own.
+ */
+public class PatternSetMatcher {
+	private static final Logger log = Logger.getLogger(PatternSetMatcher.class);
+	private static final String REGEX_PREFIX = "regex:";
+	// \1 .. \9 or \k<name>
+	private static final Pattern BACKREFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+	private final Pattern pattern;
+	private final List<Pattern> separate = new ArrayList<Pattern>();
+
+	/**
+	 * @param patterns the patterns to match; if empty, nothing matches
+	 */
+	public PatternSetMatcher(Collection<String> patterns) {
+		String regex = "";
+		for (String p : patterns) {
+			if (p == null || p.isEmpty()) {
+				continue;
+			}
+			String part;
+			if (p.startsWith(REGEX_PREFIX)) {
+				part = p.substring(REGEX_PREFIX.length());
+				Pattern single;
+				try {
+					single = Pattern.compile(part);
+				} catch (PatternSyntaxException e) {
+					log.warn("Ignoring invalid regular expression " + part + ": " + e.getDescription());
+					continue;
+				}
+				if (BACKREFERENCE.matcher(part).find()) {
+					separate.add(single);
+					continue;
+				}
+				String combined = (regex.isEmpty() ? "" : regex + "|") + "(?:" + part + ")";
+				try {
+					Pattern.compile(combined);
+				} catch (PatternSyntaxException e) {
+					log.warn("Regular expression " + part + " cannot be combined with the other patterns (" + e.getDescription() + "), matching it on its own");
+					separate.add(single);
+					continue;
+				}
+				regex = combined;
+			} else {
+				regex = (regex.isEmpty() ? "" : regex + "|") + "(?:" + Pattern.quote(p) + ")";
+			}
+		}
+		pattern = !regex.isEmpty() ? Pattern.compile(regex) : null;
+	}
+
+	/**
+	 * @param text the text to check
+	 * @return whether any of the patterns occurs in the text
+	 */
+	public boolean matches(CharSequence text) {
+		if (text == null) {
+			return false;
+		}
+		if (pattern != null && pattern.matcher(text).find()) {
+			return true;
+		}
+		for (Pattern single : separate) {
+			if (single.matcher(text).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isEmpty() {
+		return pattern == null && separate.isEmpty();
+	}
+
+	/**
+	 * @param values the metadata values to check
+	 * @return whether any of the patterns occurs in any of the values; stops at the first match
+	 */
+	public boolean matchesAny(Metadatum[] values) {
+		if (isEmpty() || values == null) {
+			return false;
+		}
+		for (Metadatum value : values) {
+			if (value != null && matches(value.value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param values the values to check
+	 * @return whether any of the patterns occurs in any of the values; stops at the first match
+	 */
+	public boolean matchesAny(Iterable<String> values) {
+		if (isEmpty() || values == null) {
+			return false;
+		}
+		for (String value : values) {
+			if (matches(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		if (isEmpty()) {
+			return "(nothing)";
+		}
+		StringBuilder result = new StringBuilder(pattern != null ? pattern.pattern() : "");
+		for (Pattern single : separate) {
+			result.append(result.length() > 0 ? " or " : "").append(single.pattern());
+		}
+		return result.toString();
+	}
+}
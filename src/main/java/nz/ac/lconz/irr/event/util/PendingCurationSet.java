@@ -0,0 +1,286 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent set of curation tasks that are waiting for their object to stop changing before they are queued.
+ *
+ * Every time an object changes, its entry is (re)scheduled for release after the quiet period, and the tasks are
+ * merged with those already waiting. Entries whose quiet period has passed are released into a {@link CurationBatch}
+ * whenever a debouncing consumer queues tasks, or when this class is run from the command line (eg from cron, shortly
+ * before the curation queue is processed), so that objects that have stopped changing are released even if nothing
+ * else happens.
+ *
+ * Released entries stay in the set, held back for {@link #CLAIM_MILLIS} ms, until the batch they were released into has
+ * been written to the task queue (or the outbox); only then are they removed. If that doesn't happen (the write fails
+ * or the JVM goes away), they are released again once the claim has run out.
+ *
+ * The set is kept in <code>queue.debounce.file</code> (default: [dspace]/var/lconz-curation.pending), one entry per
+ * line. The file is replaced as a whole (written to a temporary file, then renamed) whenever it changes, and a separate
+ * lock file is locked while it is being updated so that all webapps and command line tools can share it.
+ *
+ * Run via [dspace]/bin/dspace dsrun nz.ac.lconz.irr.event.util.PendingCurationSet [-a] [-l]
+ */
+public class PendingCurationSet {
+	private static final Logger log = Logger.getLogger(PendingCurationSet.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// how long released entries are held back for the batch they were released into to be written
+	static final long CLAIM_MILLIS = 10 * 60 * 1000;
+
+	private final File file;
+	private final File lockFile;
+
+	public PendingCurationSet(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+	}
+
+	/**
+	 * @return the pending set in the configured file
+	 */
+	public static PendingCurationSet getDefault() {
+		String defaultFile = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "lconz-curation.pending";
+		return new PendingCurationSet(new File(EventConsumerConfig.current().getProperty("queue.debounce.file", defaultFile)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("a", "all", false, "release all waiting entries, even if their quiet period hasn't passed yet");
+		options.addOption("l", "list", false, "only list the waiting entries");
+		options.addOption("h", "help", false, "print this help message");
+
+		CommandLine line;
+		try {
+			line = new PosixParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("PendingCurationSet", options);
+			System.exit(1);
+			return;
+		}
+		if (line.hasOption("h")) {
+			new HelpFormatter().printHelp("PendingCurationSet", options);
+			return;
+		}
+
+		PendingCurationSet pending = getDefault();
+		if (line.hasOption("l")) {
+			for (Map.Entry<String, Entry> entry : pending.list().entrySet()) {
+				Entry value = entry.getValue();
+				System.out.println(value.identifier + " (queue " + value.queueName + "): " + value.tasks + ", due " + new Date(value.releaseAt));
+			}
+			return;
+		}
+
+		Context context = new Context();
+		try {
+			CurationBatch batch = new CurationBatch();
+			batch.setSkipPending(EventConsumerConfig.current().getBooleanProperty("queue.skip_pending", false));
+			int released = pending.update(null, batch, 0, line.hasOption("a") ? Long.MAX_VALUE : System.currentTimeMillis());
+			batch.flush(context);
+			context.complete();
+			System.out.println("Released " + released + " waiting entries for curation");
+		} finally {
+			if (context.isValid()) {
+				context.abort();
+			}
+		}
+	}
+
+	/**
+	 * Add the entries of one batch to the set, then add all entries whose quiet period has passed to another batch.
+	 * The released entries are removed from the set once that batch has been written.
+	 * @param changed entries for objects that have just changed, to be (re)scheduled; may be null
+	 * @param due the batch to add released entries to
+	 * @param quietMillis the quiet period for the changed entries
+	 * @return the number of objects released
+	 * @throws IOException if the pending set cannot be read or written
+	 */
+	public int update(CurationBatch changed, CurationBatch due, long quietMillis) throws IOException {
+		return update(changed, due, quietMillis, System.currentTimeMillis());
+	}
+
+	private int update(CurationBatch changed, CurationBatch due, long quietMillis, long releaseUntil) throws IOException {
+		long now = System.currentTimeMillis();
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Cannot create directory for pending curation set " + parent.getAbsolutePath());
+		}
+		try (LockedFile locked = LockedFile.lock(lockFile)) {
+			Map<String, Entry> entries = read();
+			boolean modified = false;
+
+			if (changed != null) {
+				for (Map.Entry<String, Map<String, Set<String>>> queueEntries : changed.entries().entrySet()) {
+					for (Map.Entry<String, Set<String>> objectTasks : queueEntries.getValue().entrySet()) {
+						String key = queueEntries.getKey() + "\t" + objectTasks.getKey();
+						Entry entry = entries.remove(key);
+						if (entry == null) {
+							entry = new Entry(queueEntries.getKey(), objectTasks.getKey());
+						}
+						entry.tasks.addAll(objectTasks.getValue());
+						entry.releaseAt = now + quietMillis;
+						// re-insert so that the file stays ordered by last change
+						entries.put(key, entry);
+						modified = true;
+					}
+				}
+			}
+
+			// key -> end of the claim, to recognise entries that haven't changed since they were released
+			final Map<String, Long> claimed = new HashMap<String, Long>();
+			for (Map.Entry<String, Entry> keyed : entries.entrySet()) {
+				Entry entry = keyed.getValue();
+				if (entry.releaseAt <= releaseUntil) {
+					for (String task : entry.tasks) {
+						due.add(entry.identifier, task, entry.queueName);
+					}
+					entry.releaseAt = now + CLAIM_MILLIS;
+					claimed.put(keyed.getKey(), entry.releaseAt);
+					modified = true;
+				}
+			}
+
+			if (modified) {
+				write(entries);
+			}
+			if (!claimed.isEmpty()) {
+				log.info("Released " + claimed.size() + " objects from the pending curation set, " + (entries.size() - claimed.size()) + " still waiting");
+				due.whenHandedOver(new Runnable() {
+					public void run() {
+						confirm(claimed);
+					}
+				});
+			}
+			return claimed.size();
+		}
+	}
+
+	/**
+	 * Remove released entries once their batch has been written, unless they have changed again in the meantime.
+	 * @param claimed key -> end of the claim
+	 */
+	private void confirm(Map<String, Long> claimed) {
+		try (LockedFile locked = LockedFile.lock(lockFile)) {
+			Map<String, Entry> entries = read();
+			boolean modified = false;
+			for (Map.Entry<String, Long> entry : claimed.entrySet()) {
+				Entry current = entries.get(entry.getKey());
+				if (current != null && current.releaseAt == entry.getValue()) {
+					entries.remove(entry.getKey());
+					modified = true;
+				}
+			}
+			if (modified) {
+				write(entries);
+			}
+		} catch (IOException e) {
+			log.warn("Cannot remove released entries from the pending curation set, they will be released again after "
+					+ (CLAIM_MILLIS / 1000) + " seconds", e);
+		}
+	}
+
+	/**
+	 * @return the entries currently waiting, keyed by queue name and object identifier
+	 * @throws IOException if the pending set cannot be read
+	 */
+	public Map<String, Entry> list() throws IOException {
+		if (!file.exists()) {
+			return new LinkedHashMap<String, Entry>();
+		}
+		try (LockedFile locked = LockedFile.lock(lockFile)) {
+			return read();
+		}
+	}
+
+
+	private Map<String, Entry> read() throws IOException {
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		if (!file.exists()) {
+			return entries;
+		}
+		for (String line : new String(Files.readAllBytes(file.toPath()), UTF8).split("\n")) {
+			String[] fields = line.split("\t");
+			if (fields.length < 4) {
+				if (StringUtils.isNotBlank(line)) {
+					log.warn("Ignoring malformed line in pending curation set " + file.getAbsolutePath() + ": " + line);
+				}
+				continue;
+			}
+			try {
+				Entry entry = new Entry(fields[1], fields[2]);
+				entry.releaseAt = Long.parseLong(fields[0]);
+				entry.tasks.addAll(Arrays.asList(fields[3].split(",")));
+				entries.put(entry.queueName + "\t" + entry.identifier, entry);
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring malformed line in pending curation set " + file.getAbsolutePath() + ": " + line);
+			}
+		}
+		return entries;
+	}
+
+	private void write(Map<String, Entry> entries) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (Entry entry : entries.values()) {
+			String line = entry.releaseAt + "\t" + entry.queueName + "\t" + entry.identifier + "\t" + StringUtils.join(entry.tasks, ",") + "\n";
+			bytes.write(line.getBytes(UTF8));
+		}
+		LockedFile.replace(file, bytes.toByteArray());
+	}
+
+	/**
+	 * Tasks waiting for one object in one queue.
+	 */
+	public static class Entry {
+		private final String queueName;
+		private final String identifier;
+		private final Set<String> tasks = new LinkedHashSet<String>();
+		private long releaseAt;
+
+		Entry(String queueName, String identifier) {
+			this.queueName = queueName;
+			this.identifier = identifier;
+		}
+
+		public String getQueueName() {
+			return queueName;
+		}
+
+		public String getIdentifier() {
+			return identifier;
+		}
+
+		public Set<String> getTasks() {
+			return tasks;
+		}
+
+		/**
+		 * @return when the quiet period for this object ends (milliseconds since the epoch)
+		 */
+		public long getReleaseAt() {
+			return releaseAt;
+		}
+	}
+}
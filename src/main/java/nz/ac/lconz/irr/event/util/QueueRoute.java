@@ -0,0 +1,120 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.util.Set;
+
+/**
+ * Rule sending some curation tasks to a queue other than the consumer's default queue.
+ *
+ * Routes are listed, highest priority first, in <code>queue.routes</code>; each route <code>[name]</code> is
+ * configured via
+ * <ul>
+ *     <li><code>queue.route.[name].queue</code>: the queue to send matching tasks to (required)</li>
+ *     <li><code>queue.route.[name].consumers</code>: the consumers the route applies to, named as in their
+ *     configuration (install, bitstreamchange, embargo.set, embargo.lifted)</li>
+ *     <li><code>queue.route.[name].tasks</code>: the curation tasks the route applies to</li>
+ *     <li><code>queue.route.[name].collections</code>: handles of the owning collections the route applies to</li>
+ *     <li><code>queue.route.[name].min-size</code> / <code>.max-size</code>: bounds (in bytes) on the total size of
+ *     the item's ORIGINAL files</li>
+ * </ul>
+ * Conditions that aren't configured match everything. A task goes to the queue of the first route that matches.
+ */
+public class QueueRoute {
+	private static final Logger log = Logger.getLogger(QueueRoute.class);
+
+	static final String ROUTES = "queue.routes";
+	private static final String PREFIX = "queue.route.";
+
+	private final String name;
+	private final String queueName;
+	private final Set<String> consumers;
+	private final Set<String> tasks;
+	private final Set<String> collections;
+	private final long minSize;
+	private final long maxSize;
+
+	private QueueRoute(String name, String queueName, Set<String> consumers, Set<String> tasks, Set<String> collections, long minSize, long maxSize) {
+		this.name = name;
+		this.queueName = queueName;
+		this.consumers = consumers;
+		this.tasks = tasks;
+		this.collections = collections;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param config the configuration snapshot
+	 * @param name the name of the route
+	 * @return the route, or null if no queue is configured for it
+	 */
+	static QueueRoute parse(EventConsumerConfig config, String name) {
+		String queueName = config.getProperty(PREFIX + name + ".queue");
+		if (StringUtils.isBlank(queueName)) {
+			log.warn("No queue configured for curation queue route " + name + " (" + PREFIX + name + ".queue), ignoring");
+			return null;
+		}
+		return new QueueRoute(name, queueName,
+				config.getSet(PREFIX + name + ".consumers"),
+				config.getSet(PREFIX + name + ".tasks"),
+				config.getSet(PREFIX + name + ".collections"),
+				parseSize(config, PREFIX + name + ".min-size", -1L),
+				parseSize(config, PREFIX + name + ".max-size", Long.MAX_VALUE));
+	}
+
+	private static long parseSize(EventConsumerConfig config, String key, long defaultValue) {
+		String value = config.getProperty(key);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			log.warn("Size " + value + " given for " + key + " isn't numeric, ignoring");
+			return defaultValue;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	/**
+	 * @return whether this route needs the handle of the item's owning collection to decide
+	 */
+	boolean needsCollection() {
+		return !collections.isEmpty();
+	}
+
+	/**
+	 * @return whether this route needs the size of the item's files to decide
+	 */
+	boolean needsSize() {
+		return minSize >= 0 || maxSize < Long.MAX_VALUE;
+	}
+
+	/**
+	 * Check the conditions that don't depend on the item.
+	 */
+	boolean matches(String consumer, String task) {
+		return (consumers.isEmpty() || consumers.contains(consumer)) && (tasks.isEmpty() || tasks.contains(task));
+	}
+
+	/**
+	 * Check the conditions that depend on the item; only called if {@link #matches(String, String)} is true.
+	 * @param collectionHandle handle of the item's owning collection (null if not needed or there is none)
+	 * @param size total size of the item's files (-1 if not needed)
+	 */
+	boolean matchesItem(String collectionHandle, long size) {
+		if (needsCollection() && (collectionHandle == null || !collections.contains(collectionHandle))) {
+			return false;
+		}
+		return !needsSize() || (size >= minSize && size <= maxSize);
+	}
+}
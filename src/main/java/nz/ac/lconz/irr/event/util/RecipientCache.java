@@ -0,0 +1,132 @@
+package nz.ac.lconz.irr.event.util;
+
+import org.dspace.core.Context;
+import org.dspace.eperson.EPerson;
+import org.dspace.eperson.Group;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the e-mail addresses of notification recipients, keyed by group ID.
+ *
+ * Looking up all members of a group is a recursive walk over the group and its subgroups in the database; without a
+ * cache this is repeated for every notification e-mail. Entries expire after <code>cache.recipients.ttl</code> seconds
+ * (default: 300), and at most <code>cache.recipients.size</code> groups (default: 100) are kept, least recently used
+ * first out. The cache is cleared by {@link nz.ac.lconz.irr.event.consumer.CacheInvalidationConsumer} whenever a group or
+ * e-person changes, so that membership changes made in the same webapp take effect immediately; the expiry takes care
+ * of changes made elsewhere (eg in another webapp or on the command line). A lookup that was already running when the
+ * cache was cleared isn't cached, since it may have seen the old membership.
+ */
+public class RecipientCache {
+	private static final Map<Key, Entry> cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > EventConsumerConfig.current().getIntProperty("cache.recipients.size", 100);
+		}
+	};
+	// incremented by clear(), so that lookups started before then don't put stale results into the cache
+	private static long generation = 0L;
+
+	/**
+	 * Find the e-mail addresses of the members of a group.
+	 * @param ctx the DSpace context, used for the database lookup if the group isn't cached
+	 * @param groupId the ID of the group
+	 * @param includeSubgroups whether to include members of subgroups (recursively) or only direct members
+	 * @return the e-mail addresses of the group members (unmodifiable), or null if the group doesn't exist
+	 * @throws SQLException if the group cannot be looked up
+	 */
+	public static List<String> getRecipientEmails(Context ctx, int groupId, boolean includeSubgroups) throws SQLException {
+		Key key = new Key(groupId, includeSubgroups);
+		long now = System.currentTimeMillis();
+		long startGeneration;
+		synchronized (cache) {
+			Entry entry = cache.get(key);
+			if (entry != null && entry.expires > now) {
+				return entry.emails;
+			}
+			startGeneration = generation;
+		}
+
+		List<String> emails = null;
+		Group group = Group.find(ctx, groupId);
+		if (group != null) {
+			EPerson[] members = includeSubgroups ? Group.allMembers(ctx, group) : group.getMembers();
+			List<String> addresses = new ArrayList<String>(members.length);
+			for (EPerson member : members) {
+				addresses.add(member.getEmail());
+			}
+			emails = Collections.unmodifiableList(addresses);
+		}
+
+		long ttl = EventConsumerConfig.current().getIntProperty("cache.recipients.ttl", 300) * 1000L;
+		synchronized (cache) {
+			if (generation == startGeneration) {
+				cache.put(key, new Entry(emails, now + ttl));
+			}
+		}
+		return emails;
+	}
+
+	/**
+	 * Cache the recipients of a group without looking them up, eg for benchmarks that have no database to look them up
+	 * in. The entry expires like any other.
+	 * @param groupId the ID of the group
+	 * @param includeSubgroups whether the addresses include members of subgroups
+	 * @param emails the e-mail addresses of the group members
+	 */
+	static void put(int groupId, boolean includeSubgroups, List<String> emails) {
+		long ttl = EventConsumerConfig.current().getIntProperty("cache.recipients.ttl", 300) * 1000L;
+		synchronized (cache) {
+			cache.put(new Key(groupId, includeSubgroups), new Entry(Collections.unmodifiableList(new ArrayList<String>(emails)), System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * Forget all cached recipients.
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			cache.clear();
+			generation++;
+		}
+	}
+
+	private static class Key {
+		private final int groupId;
+		private final boolean includeSubgroups;
+
+		Key(int groupId, boolean includeSubgroups) {
+			this.groupId = groupId;
+			this.includeSubgroups = includeSubgroups;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return groupId == other.groupId && includeSubgroups == other.includeSubgroups;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * groupId + (includeSubgroups ? 1 : 0);
+		}
+	}
+
+	private static class Entry {
+		private final List<String> emails;
+		private final long expires;
+
+		Entry(List<String> emails, long expires) {
+			this.emails = emails;
+			this.expires = expires;
+		}
+	}
+}